@@ -0,0 +1,158 @@
+package com.sabari.user;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.sabari.user.LoginWorkload.Operation;
+
+/**
+ * Drives a {@link LoginWorkload} from a fixed number of workers, each issuing its next
+ * operation as soon as the previous one returns. Latencies of successful operations are
+ * recorded in microseconds into lock-free HdrHistogram recorders; whatever was recorded
+ * during the warm-up is discarded.
+ */
+final class LoadRunner {
+    private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+    private final LoginWorkload workload;
+    private final Map<Operation, Integer> mix;
+    private final int totalWeight;
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Map<Operation, String> firstErrors = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    LoadRunner(LoginWorkload workload, Map<Operation, Integer> mix) {
+        this.workload = workload;
+        this.mix = new EnumMap<>(mix);
+        this.totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("The operation mix has no weight");
+        }
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder(3));
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * Runs the workload for the warm-up and then the measured duration.
+     *
+     * @param virtualThreads one virtual thread per worker instead of a platform thread pool;
+     *                       needs Java 21 or later
+     */
+    Result run(int concurrency, boolean virtualThreads, Duration warmup, Duration duration) throws InterruptedException {
+        ExecutorService workers = virtualThreads ? virtualThreadExecutor() : platformThreadExecutor(concurrency);
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(this::work);
+            }
+            Thread.sleep(warmup.toMillis());
+            for (Operation operation : Operation.values()) {
+                recorders.get(operation).reset();
+                errors.get(operation).reset();
+            }
+            firstErrors.clear();
+            long started = System.nanoTime();
+            Thread.sleep(duration.toMillis());
+            Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+            Map<Operation, Long> failures = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, recorders.get(operation).getIntervalHistogram());
+                failures.put(operation, errors.get(operation).sum());
+            }
+            long elapsed = System.nanoTime() - started;
+            Map<Operation, String> errorSamples = new EnumMap<>(Operation.class);
+            errorSamples.putAll(firstErrors);
+            return new Result(latencies, failures, errorSamples, elapsed);
+        } finally {
+            running = false;
+            workers.shutdown();
+            workers.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void work() {
+        while (running) {
+            Operation operation = next();
+            long started = System.nanoTime();
+            try {
+                workload.run(operation);
+                recorders.get(operation).recordValue((System.nanoTime() - started) / 1000);
+            } catch (RuntimeException ex) {
+                errors.get(operation).increment();
+                firstErrors.putIfAbsent(operation, String.valueOf(ex));
+            }
+        }
+    }
+
+    private Operation next() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException("Operation mix exhausted");
+    }
+
+    private static ExecutorService platformThreadExecutor(int concurrency) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Looked up reflectively so the module still builds for the project's Java 17 baseline
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later; running on " + System.getProperty("java.version"), ex);
+        }
+    }
+
+    static final class Result {
+        private final Map<Operation, Histogram> latencies;
+        private final Map<Operation, Long> errors;
+        private final Map<Operation, String> firstErrors;
+        private final long elapsedNanos;
+
+        private Result(Map<Operation, Histogram> latencies, Map<Operation, Long> errors, Map<Operation, String> firstErrors, long elapsedNanos) {
+            this.latencies = latencies;
+            this.errors = errors;
+            this.firstErrors = firstErrors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        Histogram latencies(Operation operation) {
+            return latencies.get(operation);
+        }
+
+        long errors(Operation operation) {
+            return errors.get(operation);
+        }
+
+        String firstError(Operation operation) {
+            return firstErrors.get(operation);
+        }
+
+        double elapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.sabari.user;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.HdrHistogram.Histogram;
+
+import com.sabari.user.LoginWorkload.Operation;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Measures login throughput and latency of the provider end to end, without a Keycloak
+ * server: the provider is created through its factory with stub sessions and runs
+ * against an in-process Neo4j seeded with {@code users} users. Options are given as
+ * {@code key=value}:
+ * <ul>
+ * <li>{@code users} seeded users (default 10000)</li>
+ * <li>{@code concurrency} concurrent workers (default 32)</li>
+ * <li>{@code threads} {@code platform} or {@code virtual} (Java 21+) workers (default platform)</li>
+ * <li>{@code warmup}, {@code duration} seconds of warm-up and of measurement (default 10 and 30)</li>
+ * <li>{@code mix} operation weights (default {@code lookup:60,isValid:30,search:8,create:2})</li>
+ * <li>{@code hash} stored password hash, {@code plain} or {@code pbkdf2-sha256} (default pbkdf2-sha256)</li>
+ * <li>{@code pageSize} users per search page (default 20)</li>
+ * <li>{@code provider.<key>} any provider configuration property, e.g. {@code provider.userCacheTtl=300}</li>
+ * </ul>
+ * Created users are looked up right after their admin event, so {@code create} cannot be
+ * mixed with write-behind, which stores them later.
+ */
+public final class LoadTest {
+    private static final String PROVIDER_OPTION_PREFIX = "provider.";
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        try {
+            run(args);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        Map<String, String> providerConfig = new LinkedHashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            String key = arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            if (key.startsWith(PROVIDER_OPTION_PREFIX)) {
+                providerConfig.put(key.substring(PROVIDER_OPTION_PREFIX.length()), value);
+            } else {
+                options.put(key, value);
+            }
+        }
+        int users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "32"));
+        boolean virtualThreads = "virtual".equals(options.getOrDefault("threads", "platform"));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        Map<Operation, Integer> mix = mix(options.getOrDefault("mix", "lookup:60,isValid:30,search:8,create:2"));
+        int pageSize = Integer.parseInt(options.getOrDefault("pageSize", "20"));
+        if (mix.getOrDefault(Operation.CREATE, 0) > 0 && Boolean.parseBoolean(providerConfig.get(CONFIG_KEY_WRITE_BEHIND_ENABLED))) {
+            throw new IllegalArgumentException("The create operation cannot be verified with " + CONFIG_KEY_WRITE_BEHIND_ENABLED + "=true");
+        }
+        PasswordVerifier verifier = PlainTextPasswordVerifier.ID.equals(options.getOrDefault("hash", PASSWORD_HASH_PBKDF2_SHA256))
+            ? new PlainTextPasswordVerifier()
+            : new Pbkdf2PasswordVerifier(PASSWORD_HASH_PBKDF2_SHA256, "PBKDF2WithHmacSHA256", DEFAULT_PASSWORD_HASH_ITERATIONS, 256);
+
+        System.out.printf("Seeding %d users (%s hashes)...%n", users, verifier.getId());
+        Neo4jGraph graph = new Neo4jGraph(users);
+        graph.start("{" + verifier.getId() + "}" + verifier.encode(Neo4jGraph.PASSWORD), providerConfig);
+        try {
+            LoginWorkload workload = new LoginWorkload(graph, graph.component(providerConfig), pageSize);
+            System.out.printf("Running %s for %ds after %ds warm-up on %d %s threads...%n",
+                mix, duration.getSeconds(), warmup.getSeconds(), concurrency, virtualThreads ? "virtual" : "platform");
+            LoadRunner.Result result = new LoadRunner(workload, mix).run(concurrency, virtualThreads, warmup, duration);
+            report(result, mix);
+        } finally {
+            graph.stop();
+        }
+    }
+
+    private static Map<Operation, Integer> mix(String spec) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String part : spec.split(",")) {
+            String[] weight = part.trim().split(":");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Expected operation:weight in the mix, got " + part);
+            }
+            mix.put(Operation.byLabel(weight[0].trim()), Integer.parseInt(weight[1].trim()));
+        }
+        return mix;
+    }
+
+    private static void report(LoadRunner.Result result, Map<Operation, Integer> mix) {
+        double seconds = result.elapsedSeconds();
+        Histogram total = new Histogram(3);
+        long totalErrors = 0;
+        System.out.printf("%n%-10s %10s %8s %10s %10s %10s %10s %10s%n", "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Operation operation : mix.keySet()) {
+            Histogram latencies = result.latencies(operation);
+            total.add(latencies);
+            totalErrors += result.errors(operation);
+            row(operation.label(), latencies, result.errors(operation), seconds);
+        }
+        row("total", total, totalErrors, seconds);
+        for (Operation operation : mix.keySet()) {
+            if (result.firstError(operation) != null) {
+                System.out.printf("%nFirst %s error: %s%n", operation.label(), result.firstError(operation));
+            }
+        }
+    }
+
+    private static void row(String label, Histogram latencies, long errors, double seconds) {
+        System.out.printf("%-10s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n",
+            label,
+            latencies.getTotalCount(),
+            errors,
+            latencies.getTotalCount() / seconds,
+            latencies.getValueAtPercentile(50) / 1000.0,
+            latencies.getValueAtPercentile(99) / 1000.0,
+            latencies.getValueAtPercentile(99.9) / 1000.0,
+            latencies.getMaxValue() / 1000.0);
+    }
+}
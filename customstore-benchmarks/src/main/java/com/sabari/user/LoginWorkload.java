@@ -0,0 +1,127 @@
+package com.sabari.user;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * The operations of the load mix, each run the way Keycloak runs it: through a provider
+ * the factory creates for the call, as Keycloak creates one per session. An operation
+ * that does not produce the expected answer throws, so it is counted as an error; a
+ * created user must be found in Neo4j once its admin event has been handled.
+ */
+final class LoginWorkload {
+
+    enum Operation {
+        LOOKUP("lookup"),
+        IS_VALID("isValid"),
+        SEARCH("search"),
+        CREATE("create");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        String label() {
+            return label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        static Operation byLabel(String label) {
+            for (Operation operation : values()) {
+                if (operation.label.equalsIgnoreCase(label)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation " + label);
+        }
+    }
+
+    private final CustomUserStorageProviderFactory factory = new CustomUserStorageProviderFactory();
+    private final CustomEventListenerProviderFactory eventFactory = new CustomEventListenerProviderFactory();
+    private final Neo4jGraph graph;
+    private final ComponentModel component;
+    private final RealmModel realm;
+    private final KeycloakSession session;
+    private final int pageSize;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong created = new AtomicLong();
+    // Users whose admin CREATE event is being handled, as the local storage would return them
+    private final Map<String, UserModel> creating = new ConcurrentHashMap<>();
+
+    LoginWorkload(Neo4jGraph graph, ComponentModel component, int pageSize) {
+        this.graph = graph;
+        this.component = component;
+        this.realm = Stubs.realm(component);
+        this.session = Stubs.session(realm, creating::get);
+        this.pageSize = pageSize;
+    }
+
+    void run(Operation operation) {
+        switch (operation) {
+            case LOOKUP:
+                if (provider().getUserByUsername(realm, graph.randomUsername()) == null) {
+                    throw new IllegalStateException("Seeded user not found");
+                }
+                break;
+            case IS_VALID:
+                if (!provider().isValid(realm, Stubs.user(graph.randomUsername()), UserCredentialModel.password(Neo4jGraph.PASSWORD))) {
+                    throw new IllegalStateException("Password of a seeded user rejected");
+                }
+                break;
+            case SEARCH:
+                try (Stream<UserModel> page = provider().searchForUserStream(realm, Map.of(UserModel.SEARCH, graph.randomUsername()), 0, pageSize)) {
+                    page.forEach(user -> { });
+                }
+                break;
+            case CREATE:
+                createUser();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private void createUser() {
+        String id = UUID.randomUUID().toString();
+        String username = "load-" + runId + "-" + created.incrementAndGet();
+        creating.put(id, Stubs.newUser(id, username));
+        try {
+            AdminEvent event = new AdminEvent();
+            event.setRealmId(Stubs.REALM_ID);
+            event.setOperationType(OperationType.CREATE);
+            event.setResourcePath(KC_RESOURCE_PATH_USER_SUFFIX + id);
+            EventListenerProvider listener = eventFactory.create(session);
+            listener.onEvent(event, false);
+        } finally {
+            creating.remove(id);
+        }
+        // The listener only logs failed writes, so look the user up to see it was stored
+        if (provider().getUserByUsername(realm, username) == null) {
+            throw new IllegalStateException("Created user not found in Neo4j");
+        }
+    }
+
+    private CustomUserStorageProvider provider() {
+        return factory.create(session, component);
+    }
+}
@@ -0,0 +1,130 @@
+package com.sabari.user;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.UserStorageProvider;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+import static org.neo4j.driver.Values.parameters;
+
+/**
+ * An in-process Neo4j seeded with {@code userCount} synthetic users, each with a
+ * {@code HAS_PASSWORD} relationship to a {@code Password} node, plus the indexes the
+ * provider expects. Usernames are {@code user0} to {@code user<userCount-1>} and every
+ * password is {@value #PASSWORD}. JMH manages its lifecycle in the benchmarks; the load
+ * test starts and stops it itself.
+ */
+@State(Scope.Benchmark)
+public class Neo4jGraph {
+    static final String PASSWORD = "secret";
+    private static final int SEED_BATCH_SIZE = 10000;
+    private static final String QUERY_SEED_USERS = "UNWIND range($from, $to - 1) AS i "
+        + "CREATE (u:User {userName: 'user' + i, email: 'user' + i + '@example.com', firstName: 'First' + i, lastName: 'Last' + i, birthDate: '1990-01-01', lastModified: timestamp()})"
+        + "-[:HAS_PASSWORD]->(:Password {hash: $hash})";
+    private static final String QUERY_SET_ALL_PASSWORDS = "MATCH (p:Password) CALL { WITH p SET p.hash = $hash } IN TRANSACTIONS OF 10000 ROWS";
+
+    @Param({"10000"})
+    public int userCount;
+
+    private Neo4j neo4j;
+    private final List<String> components = new ArrayList<>();
+
+    public Neo4jGraph() {
+    }
+
+    Neo4jGraph(int userCount) {
+        this.userCount = userCount;
+    }
+
+    @Setup(Level.Trial)
+    public void start() {
+        start("{" + PlainTextPasswordVerifier.ID + "}" + PASSWORD, Map.of());
+    }
+
+    /**
+     * Starts Neo4j and seeds it.
+     *
+     * @param passwordHash the stored hash of every user, prefixed with its verifier ID
+     * @param config       provider configuration to seed with, e.g. the databases to use
+     */
+    void start(String passwordHash, Map<String, String> config) {
+        neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().build();
+        Map<String, String> seedConfig = new HashMap<>(config);
+        seedConfig.put(CONFIG_KEY_SCHEMA_MANAGEMENT, SCHEMA_MANAGEMENT_CREATE);
+        ComponentModel seed = component(seedConfig);
+        try (Driver driver = DbUtil.createDriver(seed)) {
+            SchemaManager.ensure(driver, seed);
+            try (Session s = driver.session()) {
+                for (int from = 0; from < userCount; from += SEED_BATCH_SIZE) {
+                    Query batch = new Query(QUERY_SEED_USERS, parameters(
+                        "from", from,
+                        "to", Math.min(userCount, from + SEED_BATCH_SIZE),
+                        DB_KEY_PASSWORD_HASH, passwordHash));
+                    s.executeWrite(tx -> tx.run(batch).consume());
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        for (String id : components) {
+            CustomUserStorageProviderFactory.componentRemoved(id);
+        }
+        components.clear();
+        neo4j.close();
+    }
+
+    /**
+     * A provider component of the {@link Stubs#realm} connected to this graph. Every call
+     * returns a component with its own ID, so its driver and caches are not shared with
+     * other benchmarks.
+     */
+    ComponentModel component(Map<String, String> config) {
+        URI bolt = neo4j.boltURI();
+        ComponentModel model = new ComponentModel();
+        model.setId("benchmark-" + UUID.randomUUID());
+        model.setName("benchmark");
+        model.setParentId(Stubs.REALM_ID);
+        model.setProviderId(NEO4J_PROVIDER_ID);
+        model.setProviderType(UserStorageProvider.class.getName());
+        model.put(CONFIG_KEY_NEO4J_DRIVER, bolt.getScheme());
+        model.put(CONFIG_KEY_NEO4J_CONNECTION_URL, bolt.getHost() + ":" + bolt.getPort());
+        model.put(CONFIG_KEY_DB_USERNAME, "neo4j");
+        model.put(CONFIG_KEY_DB_PASSWORD, "neo4j");
+        config.forEach(model::put);
+        components.add(model.getId());
+        return model;
+    }
+
+    /**
+     * Replaces every stored password hash, e.g. to benchmark a different algorithm.
+     */
+    void setPasswordHash(String hash) {
+        try (Driver driver = DbUtil.createDriver(component(Map.of())); Session s = driver.session()) {
+            s.run(new Query(QUERY_SET_ALL_PASSWORDS, parameters(DB_KEY_PASSWORD_HASH, hash))).consume();
+        }
+    }
+
+    String randomUsername() {
+        return "user" + ThreadLocalRandom.current().nextInt(userCount);
+    }
+}
@@ -0,0 +1,56 @@
+package com.sabari.user;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * {@code isValid} for a user that did not come from this login's lookup, so the hash is
+ * read from Neo4j before it is checked on the verifier pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PasswordValidationBenchmark {
+    @Param({PlainTextPasswordVerifier.ID, PASSWORD_HASH_PBKDF2_SHA256})
+    public String hashAlgorithm;
+
+    private CustomUserStorageProvider provider;
+    private RealmModel realm;
+    private UserCredentialModel credential;
+
+    @Setup(Level.Trial)
+    public void setUp(Neo4jGraph graph) {
+        PasswordVerifier verifier = PASSWORD_HASH_PBKDF2_SHA256.equals(hashAlgorithm)
+            ? new Pbkdf2PasswordVerifier(PASSWORD_HASH_PBKDF2_SHA256, "PBKDF2WithHmacSHA256", DEFAULT_PASSWORD_HASH_ITERATIONS, 256)
+            : new PlainTextPasswordVerifier();
+        graph.setPasswordHash("{" + verifier.getId() + "}" + verifier.encode(Neo4jGraph.PASSWORD));
+        realm = Stubs.realm();
+        provider = new CustomUserStorageProvider(Stubs.session(), graph.component(Map.of()));
+        credential = UserCredentialModel.password(Neo4jGraph.PASSWORD);
+    }
+
+    @Benchmark
+    public boolean isValid(Neo4jGraph graph) {
+        return provider.isValid(realm, Stubs.user(graph.randomUsername()), credential);
+    }
+}
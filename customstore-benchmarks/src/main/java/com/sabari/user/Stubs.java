@@ -0,0 +1,156 @@
+package com.sabari.user;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+/**
+ * Minimal stand-ins for the Keycloak objects the provider is handed, built with dynamic
+ * proxies so the benchmarks and the load test do not depend on a running server. Any
+ * method without an explicit answer returns an empty collection, another stub for
+ * interface types, or the type's default value. In particular the local user lookup sees
+ * an empty user table, and cluster notifications go nowhere.
+ */
+final class Stubs {
+    static final String REALM_ID = "benchmark";
+
+    private Stubs() {
+    }
+
+    static KeycloakSession session() {
+        return stub(KeycloakSession.class, Map.of());
+    }
+
+    /**
+     * A session whose realm provider knows {@code realm} and whose local user storage
+     * resolves user IDs with {@code usersById}, as the admin event listener expects.
+     */
+    static KeycloakSession session(RealmModel realm, Function<String, UserModel> usersById) {
+        RealmProvider realms = stub(RealmProvider.class, Map.of("getRealm", args -> realm));
+        UserProvider users = stub(UserProvider.class, Map.of("getUserById", args -> usersById.apply((String) args[1])));
+        return stub(KeycloakSession.class, Map.of("realms", args -> realms, "users", args -> users));
+    }
+
+    static RealmModel realm() {
+        return stub(RealmModel.class, Map.of("getId", args -> REALM_ID, "getName", args -> REALM_ID));
+    }
+
+    /**
+     * A realm whose only user storage component is {@code component}.
+     */
+    static RealmModel realm(ComponentModel component) {
+        return stub(RealmModel.class, Map.of(
+            "getId", args -> REALM_ID,
+            "getName", args -> REALM_ID,
+            "getComponentsStream", args -> Stream.of(component),
+            "getComponent", args -> component.getId().equals(args[0]) ? component : null));
+    }
+
+    static UserModel user(String username) {
+        return stub(UserModel.class, Map.of("getUsername", args -> username));
+    }
+
+    static UserModel newUser(String id, String username) {
+        return stub(UserModel.class, Map.of(
+            "getId", args -> id,
+            "getUsername", args -> username,
+            "getEmail", args -> username + "@example.com",
+            "getFirstName", args -> "Load",
+            "getLastName", args -> "Test"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, new Answers(answers));
+    }
+
+    private static final class Answers implements InvocationHandler {
+        private final Map<String, Function<Object[], Object>> answers;
+
+        private Answers(Map<String, Function<Object[], Object>> answers) {
+            this.answers = answers;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            Function<Object[], Object> answer = answers.get(name);
+            if (answer != null) {
+                return answer.apply(args);
+            }
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "stub " + method.getDeclaringClass().getSimpleName();
+                default:
+                    break;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == void.class) {
+                return null;
+            }
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == int.class || returnType == long.class || returnType == short.class || returnType == byte.class) {
+                return defaultNumber(returnType);
+            }
+            if (returnType == double.class || returnType == float.class) {
+                return returnType == double.class ? 0d : 0f;
+            }
+            if (returnType == char.class) {
+                return '\0';
+            }
+            if (Stream.class.isAssignableFrom(returnType)) {
+                return Stream.empty();
+            }
+            if (returnType == Set.class) {
+                return Set.of();
+            }
+            if (returnType == Map.class) {
+                return Map.of();
+            }
+            if (returnType == List.class || returnType == Collection.class) {
+                return List.of();
+            }
+            // getProvider(Class) is declared to return the erased provider type
+            if (name.equals("getProvider") && args != null && args.length > 0 && args[0] instanceof Class<?> && ((Class<?>) args[0]).isInterface()) {
+                returnType = (Class<?>) args[0];
+            }
+            if (returnType.isInterface()) {
+                // Chained calls such as session.getProvider(...).getEntityManager().createQuery(...)
+                return stub(returnType, Map.of());
+            }
+            return null;
+        }
+
+        private static Object defaultNumber(Class<?> type) {
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type == short.class) {
+                return (short) 0;
+            }
+            if (type == byte.class) {
+                return (byte) 0;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.sabari.user;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Username lookups: served from the user cache, which measures {@code mapUser}, and
+ * served from Neo4j, which adds the round-trip and the login mapping. Also measures
+ * {@code CustomUser.getAttributes}, which the admin console calls for every listed user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UserLookupBenchmark {
+    private CustomUserStorageProvider cached;
+    private CustomUserStorageProvider uncached;
+    private RealmModel realm;
+    private UserModel user;
+
+    @Setup(Level.Trial)
+    public void setUp(Neo4jGraph graph) {
+        KeycloakSession session = Stubs.session();
+        realm = Stubs.realm();
+        cached = new CustomUserStorageProvider(session, graph.component(Map.of(
+            CONFIG_KEY_USER_CACHE_MAX_SIZE, String.valueOf(graph.userCount),
+            CONFIG_KEY_USER_CACHE_TTL, String.valueOf(TimeUnit.DAYS.toSeconds(1)))));
+        uncached = new CustomUserStorageProvider(session, graph.component(Map.of(
+            CONFIG_KEY_USER_CACHE_MAX_SIZE, "0")));
+        for (int i = 0; i < graph.userCount; i++) {
+            cached.getUserByUsername(realm, "user" + i);
+        }
+        user = cached.getUserByUsername(realm, "user0");
+    }
+
+    @Benchmark
+    public UserModel cachedLookup(Neo4jGraph graph) {
+        return cached.getUserByUsername(realm, graph.randomUsername());
+    }
+
+    @Benchmark
+    public UserModel neo4jLookup(Neo4jGraph graph) {
+        return uncached.getUserByUsername(realm, graph.randomUsername());
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getAttributes() {
+        return user.getAttributes();
+    }
+}
@@ -0,0 +1,63 @@
+package com.sabari.user;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Admin console listings: one page of a search and of the full user list, read to the
+ * end, including the local storage check and the mapping of every row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UserSearchBenchmark {
+    @Param({"20", "100"})
+    public int pageSize;
+
+    @Param({PAGINATION_MODE_OFFSET, PAGINATION_MODE_KEYSET})
+    public String paginationMode;
+
+    private CustomUserStorageProvider provider;
+    private RealmModel realm;
+
+    @Setup(Level.Trial)
+    public void setUp(Neo4jGraph graph) {
+        realm = Stubs.realm();
+        provider = new CustomUserStorageProvider(Stubs.session(), graph.component(Map.of(
+            CONFIG_KEY_PAGINATION_MODE, paginationMode)));
+    }
+
+    @Benchmark
+    public List<UserModel> searchFirstPage() {
+        return provider.searchForUserStream(realm, "user1", 0, pageSize).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<UserModel> listSecondPage() {
+        // The first page primes the keyset cursor the second one continues from
+        provider.searchForUserStream(realm, Map.of(), 0, pageSize).forEach(user -> { });
+        return provider.searchForUserStream(realm, Map.of(), pageSize, pageSize).collect(Collectors.toList());
+    }
+}
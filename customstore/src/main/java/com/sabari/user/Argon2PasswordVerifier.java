@@ -0,0 +1,99 @@
+package com.sabari.user;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+/**
+ * Argon2 hashes in PHC string format, e.g. {@code $argon2id$v=19$m=65536,t=3,p=1$salt$hash}.
+ */
+class Argon2PasswordVerifier implements PasswordVerifier {
+    static final String ID = "argon2";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+
+    private final int memoryKb;
+    private final int iterations;
+    private final int parallelism;
+
+    Argon2PasswordVerifier(int memoryKb, int iterations, int parallelism) {
+        this.memoryKb = memoryKb;
+        this.iterations = iterations;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean verify(String password, String encoded) {
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 6) {
+            return false;
+        }
+        int version = Integer.parseInt(parts[2].substring("v=".length()));
+        int m = 0;
+        int t = 0;
+        int p = 0;
+        for (String param : parts[3].split(",")) {
+            int value = Integer.parseInt(param.substring(2));
+            switch (param.charAt(0)) {
+                case 'm': m = value; break;
+                case 't': t = value; break;
+                case 'p': p = value; break;
+                default: return false;
+            }
+        }
+        byte[] salt = Base64.getDecoder().decode(parts[4]);
+        byte[] expected = Base64.getDecoder().decode(parts[5]);
+        byte[] actual = derive(password, type(parts[1]), version, m, t, p, salt, expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    @Override
+    public String encode(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = derive(password, Argon2Parameters.ARGON2_id, Argon2Parameters.ARGON2_VERSION_13, memoryKb, iterations, parallelism, salt, HASH_BYTES);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return "$argon2id$v=" + Argon2Parameters.ARGON2_VERSION_13
+            + "$m=" + memoryKb + ",t=" + iterations + ",p=" + parallelism
+            + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    @Override
+    public boolean needsRehash(String encoded) {
+        return !encoded.startsWith("$argon2id$") || !encoded.contains("$m=" + memoryKb + ",t=" + iterations + ",p=" + parallelism + "$");
+    }
+
+    private static int type(String name) {
+        switch (name) {
+            case "argon2d": return Argon2Parameters.ARGON2_d;
+            case "argon2i": return Argon2Parameters.ARGON2_i;
+            case "argon2id": return Argon2Parameters.ARGON2_id;
+            default: throw new IllegalArgumentException("Unknown argon2 variant: " + name);
+        }
+    }
+
+    private static byte[] derive(String password, int type, int version, int m, int t, int p, byte[] salt, int length) {
+        Argon2Parameters params = new Argon2Parameters.Builder(type)
+            .withVersion(version)
+            .withMemoryAsKB(m)
+            .withIterations(t)
+            .withParallelism(p)
+            .withSalt(salt)
+            .build();
+        Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(params);
+        byte[] out = new byte[length];
+        generator.generateBytes(password.getBytes(StandardCharsets.UTF_8), out);
+        return out;
+    }
+}
@@ -0,0 +1,43 @@
+package com.sabari.user;
+
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+
+/**
+ * Standard modular-crypt bcrypt hashes, e.g. {@code $2a$10$...}.
+ */
+class BCryptPasswordVerifier implements PasswordVerifier {
+    static final String ID = "bcrypt";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int cost;
+
+    BCryptPasswordVerifier(int cost) {
+        this.cost = cost;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean verify(String password, String encoded) {
+        return OpenBSDBCrypt.checkPassword(encoded, password.toCharArray());
+    }
+
+    @Override
+    public String encode(String password) {
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        return OpenBSDBCrypt.generate(password.toCharArray(), salt, cost);
+    }
+
+    @Override
+    public boolean needsRehash(String encoded) {
+        // $2a$10$<22 char salt><31 char hash>
+        String[] parts = encoded.split("\\$");
+        return parts.length < 4 || Integer.parseInt(parts[2]) < cost;
+    }
+}
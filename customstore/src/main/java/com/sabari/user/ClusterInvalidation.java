@@ -0,0 +1,253 @@
+package com.sabari.user;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.cache.CacheRealmProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the per-node caches of every Keycloak node in step when users are created or
+ * removed through the provider. The node making the change updates its own caches and
+ * broadcasts the affected usernames and emails through Keycloak's {@link ClusterProvider};
+ * the other nodes drop those users from their caches and adjust their cached counts. Only
+ * caches that already exist on a node are touched. Changes made directly in Neo4j are not
+ * broadcast and are still bounded by the cache TTLs.
+ * <p>
+ * Component changes are broadcast the same way, since Keycloak calls the factory's
+ * component callbacks only on the node handling the admin request; the other nodes
+ * rebuild or close the component's driver and state and forget the realm's Neo4j
+ * components. Component events carry only IDs, so the Neo4j credentials in the
+ * configuration never leave the node: they are sent once the change is committed, and
+ * the other nodes reload the component from the database.
+ */
+final class ClusterInvalidation {
+    private static final Logger log = LoggerFactory.getLogger(ClusterInvalidation.class);
+    private static final String TASK_KEY = "neo4j-user-store-invalidation";
+
+    // Set once the factory is initialized; background writers have no session of their own
+    private static volatile KeycloakSessionFactory sessionFactory;
+
+    private ClusterInvalidation() {
+    }
+
+    /**
+     * Subscribes this node to invalidations sent by the others. Without a cluster provider,
+     * as on a single node, there is no one to listen to.
+     */
+    static void register(KeycloakSessionFactory factory) {
+        sessionFactory = factory;
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                log.info("No cluster provider available; user cache invalidations stay local to this node");
+                return;
+            }
+            cluster.registerListener(TASK_KEY, event -> {
+                if (event instanceof UsersChangedEvent) {
+                    UsersChangedEvent changed = (UsersChangedEvent) event;
+                    log.debug("Invalidating {} users of component {} in realm {} on notice from another node", changed.usernames.length, changed.componentId, changed.realmId);
+                    apply(changed.componentId, changed.usernames, changed.emails, changed.countDelta);
+                } else if (event instanceof ComponentChangedEvent) {
+                    ComponentChangedEvent changed = (ComponentChangedEvent) event;
+                    if (changed.change == Change.UPDATED) {
+                        log.info("Component {} in realm {} was updated on another node; rebuilding its state", changed.componentId, changed.realmId);
+                        componentUpdated(changed.componentId, changed.realmId);
+                    } else if (changed.change == Change.REMOVED && changed.componentId != null) {
+                        log.info("Component {} in realm {} was removed on another node; closing its state", changed.componentId, changed.realmId);
+                        CustomUserStorageProviderFactory.componentRemoved(changed.componentId);
+                    }
+                    RealmComponentCache.invalidate(changed.realmId);
+                }
+            });
+        });
+    }
+
+    /**
+     * Rebuilds a component updated on another node from its configuration in the database.
+     * The realm cache may not have seen the update yet, so it is read past the cache.
+     */
+    private static void componentUpdated(String componentId, String realmId) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            CacheRealmProvider cache = session.getProvider(CacheRealmProvider.class);
+            RealmProvider realms = cache == null ? session.realms() : cache.getRealmDelegate();
+            RealmModel realm = realms.getRealm(realmId);
+            ComponentModel model = realm == null ? null : realm.getComponent(componentId);
+            if (model == null) {
+                // Removed meanwhile; its own event closes the state
+                log.debug("Component {} in realm {} no longer exists; nothing to rebuild", componentId, realmId);
+                return;
+            }
+            CustomUserStorageProviderFactory.componentUpdated(model);
+        });
+    }
+
+    /**
+     * Invalidates a user on this node and on every other node of the cluster.
+     */
+    static void userChanged(KeycloakSession session, ComponentModel model, String username, String email, int countDelta) {
+        usersChanged(session, model, List.of(new UserRecord(username, email, null, null, null)), countDelta);
+    }
+
+    /**
+     * Invalidates users on this node and on every other node of the cluster. Without a
+     * session, as on the write-behind thread, the broadcast runs in a session of its own.
+     */
+    static void usersChanged(KeycloakSession session, ComponentModel model, Collection<UserRecord> users, int countDelta) {
+        String[] usernames = new String[users.size()];
+        String[] emails = new String[users.size()];
+        int i = 0;
+        for (UserRecord user : users) {
+            usernames[i] = user.getUserName();
+            emails[i++] = user.getEmail();
+        }
+        apply(model.getId(), usernames, emails, countDelta);
+        UsersChangedEvent event = new UsersChangedEvent(model.getId(), model.getParentId(), usernames, emails, countDelta);
+        try {
+            if (session != null) {
+                broadcast(session, event);
+            } else if (sessionFactory != null) {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, s -> broadcast(s, event));
+            }
+        } catch (RuntimeException ex) {
+            // The other nodes catch up once their entries expire
+            log.warn("Unable to notify other nodes of {} changed users of component {}; ex={}", usernames.length, model.getId(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Tells the other nodes that a component was added to a realm.
+     */
+    static void componentCreated(KeycloakSession session, ComponentModel model) {
+        notifyComponentChanged(session, new ComponentChangedEvent(Change.CREATED, model.getId(), model.getParentId()));
+    }
+
+    /**
+     * Tells the other nodes that a component's configuration changed.
+     */
+    static void componentUpdated(KeycloakSession session, ComponentModel model) {
+        notifyComponentChanged(session, new ComponentChangedEvent(Change.UPDATED, model.getId(), model.getParentId()));
+    }
+
+    /**
+     * Tells the other nodes that a component was removed.
+     */
+    static void componentRemoved(KeycloakSession session, ComponentModel model) {
+        notifyComponentChanged(session, new ComponentChangedEvent(Change.REMOVED, model.getId(), model.getParentId()));
+    }
+
+    /**
+     * Tells the other nodes that a realm was removed, after its components.
+     */
+    static void realmRemoved(KeycloakSession session, String realmId) {
+        notifyComponentChanged(session, new ComponentChangedEvent(Change.REMOVED, null, realmId));
+    }
+
+    /**
+     * Broadcasts a component change once the session's transaction commits, so the other
+     * nodes read the new configuration; nothing is sent if it rolls back.
+     */
+    private static void notifyComponentChanged(KeycloakSession session, ComponentChangedEvent event) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                try {
+                    cluster.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+                } catch (RuntimeException ex) {
+                    // The other nodes pick the change up when they restart
+                    log.warn("Unable to notify other nodes of the change to component {} of realm {}; ex={}", event.componentId, event.realmId, ex.getMessage());
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // The change did not happen
+            }
+        });
+    }
+
+    private static void broadcast(KeycloakSession session, ClusterEvent event) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            cluster.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+        }
+    }
+
+    private static void apply(String componentId, String[] usernames, String[] emails, int countDelta) {
+        UserCache cache = UserCache.caches().peek(componentId);
+        NegativeLookupCache unknownUsers = NegativeLookupCache.caches().peek(componentId);
+        for (int i = 0; i < usernames.length; i++) {
+            if (cache != null) {
+                cache.invalidate(usernames[i], emails[i]);
+            }
+            // Lookups made before a create may have remembered the user as unknown
+            if (unknownUsers != null) {
+                unknownUsers.clear(usernames[i], emails[i]);
+            }
+        }
+        UserCountCache counts = UserCountCache.caches().peek(componentId);
+        if (counts != null) {
+            counts.adjust(countDelta);
+        }
+    }
+
+    /**
+     * Users of one component that were created ({@code countDelta > 0}) or removed
+     * ({@code countDelta < 0}) on another node.
+     */
+    static final class UsersChangedEvent implements ClusterEvent {
+        private static final long serialVersionUID = 1L;
+
+        private final String componentId;
+        private final String realmId;
+        private final String[] usernames;
+        private final String[] emails;
+        private final int countDelta;
+
+        UsersChangedEvent(String componentId, String realmId, String[] usernames, String[] emails, int countDelta) {
+            this.componentId = componentId;
+            this.realmId = realmId;
+            this.usernames = usernames;
+            this.emails = emails;
+            this.countDelta = countDelta;
+        }
+    }
+
+    enum Change {
+        CREATED,
+        UPDATED,
+        REMOVED
+    }
+
+    /**
+     * A component created, updated or removed on another node; a removal without a
+     * component ID stands for the whole realm.
+     */
+    static final class ComponentChangedEvent implements ClusterEvent {
+        private static final long serialVersionUID = 1L;
+
+        private final Change change;
+        private final String componentId;
+        private final String realmId;
+
+        ComponentChangedEvent(Change change, String componentId, String realmId) {
+            this.change = change;
+            this.componentId = componentId;
+            this.realmId = realmId;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.sabari.user;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds one long-lived resource per provider component, keyed by component ID.
+ * The resource is built on first use and replaced (and the previous one closed) only
+ * through {@link #refresh} or {@link #replace}, which the factory calls when a component
+ * is created or updated on this node or on another one. Callers still holding a model
+ * from before a configuration change, such as a running sync or the provider of an
+ * older session, get the installed resource instead of swapping it back.
+ */
+class ComponentRegistry<T extends AutoCloseable> {
+    private static final Logger log = LoggerFactory.getLogger(ComponentRegistry.class);
+
+    private final String name;
+    private final Function<ComponentModel, T> factory;
+    private final ToIntFunction<ComponentModel> configHash;
+    private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    ComponentRegistry(String name, Function<ComponentModel, T> factory, ToIntFunction<ComponentModel> configHash) {
+        this.name = name;
+        this.factory = factory;
+        this.configHash = configHash;
+    }
+
+    T get(ComponentModel model) {
+        Entry<T> entry = entries.get(model.getId());
+        if (entry == null) {
+            entry = entries.computeIfAbsent(model.getId(), id -> {
+                log.info("Creating {} for component {}", name, id);
+                return new Entry<>(configHash.applyAsInt(model), factory.apply(model));
+            });
+        } else if (log.isDebugEnabled() && entry.configHash != configHash.applyAsInt(model)) {
+            log.debug("Using the installed {} for component {}; the caller holds a different configuration", name, model.getId());
+        }
+        return entry.resource;
+    }
+
+    /**
+     * Returns the current resource of a component without building one.
+     */
+    T peek(String componentId) {
+        Entry<T> entry = entries.get(componentId);
+        return entry == null ? null : entry.resource;
+    }
+
+    /**
+     * Builds the resource for the given component if it is missing or was built
+     * from a different configuration; an unchanged configuration keeps the existing one.
+     */
+    T refresh(ComponentModel model) {
+        return install(model, false);
+    }
+
+    /**
+     * Builds a new resource for the given component and closes the previous one, even
+     * if the configuration it depends on is unchanged.
+     */
+    T replace(ComponentModel model) {
+        return install(model, true);
+    }
+
+    private T install(ComponentModel model, boolean always) {
+        int hash = configHash.applyAsInt(model);
+        AtomicReference<Entry<T>> replaced = new AtomicReference<>();
+        Entry<T> current = entries.compute(model.getId(), (id, existing) -> {
+            if (!always && existing != null && existing.configHash == hash) {
+                return existing;
+            }
+            replaced.set(existing);
+            log.info("Creating {} for component {}", name, id);
+            return new Entry<>(hash, factory.apply(model));
+        });
+        if (replaced.get() != null) {
+            close(model.getId(), replaced.get());
+        }
+        return current.resource;
+    }
+
+    void remove(String componentId) {
+        Entry<T> removed = entries.remove(componentId);
+        if (removed != null) {
+            close(componentId, removed);
+        }
+    }
+
+    void closeAll() {
+        for (Map.Entry<String, Entry<T>> e : entries.entrySet()) {
+            if (entries.remove(e.getKey(), e.getValue())) {
+                close(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void close(String componentId, Entry<T> entry) {
+        log.info("Closing {} for component {}", name, componentId);
+        try {
+            entry.resource.close();
+        } catch (Exception ex) {
+            log.warn("Unable to close {} for component {}; ex={}", name, componentId, ex.getMessage());
+        }
+    }
+
+    private static final class Entry<T> {
+        private final int configHash;
+        private final T resource;
+
+        private Entry(int configHash, T resource) {
+            this.configHash = configHash;
+            this.resource = resource;
+        }
+    }
+}
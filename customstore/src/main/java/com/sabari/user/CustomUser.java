@@ -1,12 +1,16 @@
 package com.sabari.user;
 
-import java.util.Date;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 
-import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.LegacyUserCredentialManager;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.SubjectCredentialManager;
@@ -19,7 +23,15 @@ class CustomUser extends AbstractUserAdapter {
     private final String email;
     private final String firstName;
     private final String lastName;
-    private final Date birthDate;
+    private final LocalDate birthDate;
+    // Built once; Keycloak reads the attributes many times while rendering a user
+    private final Map<String, List<String>> attributes;
+    // Fetched with the profile on the login path so isValid needs no second query; handed out once
+    private boolean passwordLoaded;
+    private String passwordHash;
+    // Read from Neo4j the first time Keycloak asks for the user's groups
+    private Supplier<Set<GroupModel>> groupLoader;
+    private Set<GroupModel> groups;
 
     private CustomUser(KeycloakSession session, RealmModel realm,
       ComponentModel storageProviderModel,
@@ -27,14 +39,26 @@ class CustomUser extends AbstractUserAdapter {
       String email,
       String firstName,
       String lastName,
-      Date birthDate ) {
+      LocalDate birthDate ) {
         super(session, realm, storageProviderModel);
         this.username = username;
         this.email = email;
         this.firstName = firstName;
         this.lastName = lastName;
         this.birthDate = birthDate;
-        
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        putAttribute(attributes, UserModel.USERNAME, username);
+        putAttribute(attributes, UserModel.EMAIL, email);
+        putAttribute(attributes, UserModel.FIRST_NAME, firstName);
+        putAttribute(attributes, UserModel.LAST_NAME, lastName);
+        putAttribute(attributes, CustomUserStorageProviderConstants.DB_KEY_USER_BIRTHDATE, birthDate == null ? null : birthDate.toString());
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    private static void putAttribute(Map<String, List<String>> attributes, String name, String value) {
+        if (value != null) {
+            attributes.put(name, List.of(value));
+        }
     }
 
     @Override
@@ -57,21 +81,34 @@ class CustomUser extends AbstractUserAdapter {
         return email;
     }
 
-    public Date getBirthDate() {
+    public LocalDate getBirthDate() {
         return birthDate;
     }
+
+    boolean isPasswordLoaded() {
+        return passwordLoaded;
+    }
+
+    String takePasswordHash() {
+        String hash = passwordHash;
+        passwordLoaded = false;
+        passwordHash = null;
+        return hash;
+    }
     
     @Override
     public Map<String, List<String>> getAttributes() {
-        MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
-        attributes.add(UserModel.USERNAME, getUsername());
-        attributes.add(UserModel.EMAIL,getEmail());
-        attributes.add(UserModel.FIRST_NAME,getFirstName());
-        attributes.add(UserModel.LAST_NAME,getLastName());
-        attributes.add("birthDate",getBirthDate().toString());
         return attributes;
     }
 
+    @Override
+    protected Set<GroupModel> getGroupsInternal() {
+        if (groups == null) {
+            groups = groupLoader == null ? Set.of() : groupLoader.get();
+        }
+        return groups;
+    }
+
     static class Builder {
         private final KeycloakSession session;
         private final RealmModel realm;
@@ -80,7 +117,10 @@ class CustomUser extends AbstractUserAdapter {
         private String email;
         private String firstName;
         private String lastName;
-        private Date birthDate;
+        private LocalDate birthDate;
+        private boolean passwordLoaded;
+        private String passwordHash;
+        private Supplier<Set<GroupModel>> groupLoader;
         
         Builder(KeycloakSession session, RealmModel realm, ComponentModel storageProviderModel,String username) {
             this.session = session;
@@ -104,13 +144,24 @@ class CustomUser extends AbstractUserAdapter {
             return this;
         }
         
-        CustomUser.Builder birthDate(Date birthDate) {
+        CustomUser.Builder birthDate(LocalDate birthDate) {
             this.birthDate = birthDate;
             return this;
         }
         
+        CustomUser.Builder passwordHash(String passwordHash) {
+            this.passwordLoaded = true;
+            this.passwordHash = passwordHash;
+            return this;
+        }
+        
+        CustomUser.Builder groups(Supplier<Set<GroupModel>> groupLoader) {
+            this.groupLoader = groupLoader;
+            return this;
+        }
+        
         CustomUser build() {
-            return new CustomUser(
+            CustomUser user = new CustomUser(
               session,
               realm,
               storageProviderModel,
@@ -119,7 +170,10 @@ class CustomUser extends AbstractUserAdapter {
               firstName,
               lastName,
               birthDate);
-            
+            user.passwordLoaded = passwordLoaded;
+            user.passwordHash = passwordHash;
+            user.groupLoader = groupLoader;
+            return user;
         }
     }
 
@@ -4,11 +4,11 @@
 package com.sabari.user;
 
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 
 import java.util.stream.Stream;
 
@@ -31,17 +31,15 @@ import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
 import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
 import org.neo4j.driver.Session;
-import org.neo4j.driver.types.MapAccessor;
+import org.neo4j.driver.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.keycloak.events.Event;
 
 import static org.neo4j.driver.Values.parameters;
 
-import java.util.ArrayList;
-import java.util.Date;
-
 public class CustomUserStorageProvider implements UserStorageProvider, 
   UserLookupProvider, 
   CredentialInputValidator,
@@ -50,6 +48,11 @@ public class CustomUserStorageProvider implements UserStorageProvider,
   EventListenerProvider  {
     
     private static final Logger log = LoggerFactory.getLogger(CustomUserStorageProvider.class);
+    private static final String CURSOR_SEARCH_PREFIX = "search:";
+    private static final String CURSOR_PARAMS_PREFIX = "params:";
+    private static final String CURSOR_GROUP_PREFIX = "group:";
+    private static final String COALESCE_USERNAME_PREFIX = "username:";
+    private static final String COALESCE_EMAIL_PREFIX = "email:";
     private KeycloakSession ksession;    
     private KeycloakSession epksession;
     private ComponentModel model;
@@ -71,46 +74,67 @@ public class CustomUserStorageProvider implements UserStorageProvider,
 
     @Override
     public void onEvent(AdminEvent event, boolean includeRepresentation) {
-        // nothing to do
-        this.model = null;
         OperationType opsType =  event.getOperationType();
-        if ((opsType.name() == CustomUserStorageProviderConstants.KC_EVENT_CREATE ) && (event.getResourcePath().contains(CustomUserStorageProviderConstants.KC_RESOURCE_PATH_USER_SUFFIX))){
+        if (OperationType.CREATE == opsType && event.getResourcePath().contains(CustomUserStorageProviderConstants.KC_RESOURCE_PATH_USER_SUFFIX)) {
             String userID = event.getResourcePath().replaceFirst(CustomUserStorageProviderConstants.KC_RESOURCE_PATH_USER_SUFFIX, CustomUserStorageProviderConstants.EMPTY_STRING);
             RealmModel realm = this.realm.getRealm(event.getRealmId());
-            var componentStream = realm.getComponentsStream();
-             for (var component : componentStream.toList()) {
-                if (component.getProviderId().equals(CustomUserStorageProviderConstants.NEO4J_PROVIDER_ID)) {
-                    this.model = component;
-                }
+            if (realm == null) {
+                return;
+            }
+            List<ComponentModel> components = RealmComponentCache.neo4jComponents(realm);
+            if (components.isEmpty()) {
+                return;
             }
 
             UserModel newRegisteredLocalUser = this.epksession.users().getUserById(realm,  userID);
-            if (newRegisteredLocalUser!= null) {
-                if (getUserByUsername(realm,newRegisteredLocalUser.getUsername()) == null) {
-                    log.info("User {} will be registered with neo4j", newRegisteredLocalUser.getUsername());
-                    try (Session s = DbUtil.getSession(this.model)) {
-                        var txReturn = s.executeWrite(tx -> {
+            if (newRegisteredLocalUser == null) {
+                log.info("User {} not found in keycloak database", userID);
+                return;
+            }
+            for (ComponentModel component : components) {
+                this.model = component;
+                ProviderMetrics.run(this.model, "onEvent.create", () -> registerUser(realm, newRegisteredLocalUser));
+            }
+            this.model = null;
+        }
+        
+    }
+
+    private void registerUser(RealmModel realm, UserModel newRegisteredLocalUser) {
+        if (UserWriteBehindQueue.isEnabled(this.model)) {
+            // The queue skips users that already exist, on their own shard or on an old one
+            log.info("User {} queued for registration with neo4j", newRegisteredLocalUser.getUsername());
+            UserWriteBehindQueue.forComponent(this.model).enqueue(new UserRecord(
+                newRegisteredLocalUser.getUsername(),
+                newRegisteredLocalUser.getEmail(),
+                newRegisteredLocalUser.getFirstName(),
+                newRegisteredLocalUser.getLastName(),
+                null));
+        } else if (getUserByUsername(realm,newRegisteredLocalUser.getUsername()) == null) {
+            log.info("User {} will be registered with neo4j", newRegisteredLocalUser.getUsername());
+            int created = 0;
+            try {
+                created = guarded("onEvent.create", () -> {
+                    try (Session s = DbUtil.getUserSession(this.model, newRegisteredLocalUser.getUsername())) {
+                        return s.executeWrite(tx -> {
                             var query = new Query(CustomUserStorageProviderConstants.QUERY_CREATE_USER , parameters(
                                 CustomUserStorageProviderConstants.DB_KEY_USER_FIRST_NAME, newRegisteredLocalUser.getFirstName(),
                                 CustomUserStorageProviderConstants.DB_KEY_USER_LAST_NAME, newRegisteredLocalUser.getLastName(),
                                 CustomUserStorageProviderConstants.DB_KEY_USER_EMAIL, newRegisteredLocalUser.getEmail(),
                                 CustomUserStorageProviderConstants.DB_KEY_USER_NAME, newRegisteredLocalUser.getUsername()));
-                            tx.run(query).list();
-                            return null;
-                        });
-                    }
-                    catch(Exception ex) {
-                        log.warn("Database error: error in  create user {} in neo4j;  ex={}", newRegisteredLocalUser.getUsername(), ex.getMessage());
+                            return tx.run(query).consume().counters().nodesCreated();
+                        }, DbUtil.transactionConfig(this.model));
                     }
-                } else {
-                    log.info("User {} is already registered with neo4j", newRegisteredLocalUser.getUsername());
-                }
-
-            } else {
-                log.info("User {} not found in keycloak database");
+                });
             }
+            catch(Exception ex) {
+                log.warn("Database error: error in  create user {} in neo4j;  ex={}", newRegisteredLocalUser.getUsername(), ex.getMessage());
+                ProviderMetrics.failed(this.model, "onEvent.create", ex);
+            }
+            ClusterInvalidation.userChanged(this.epksession, this.model, newRegisteredLocalUser.getUsername(), newRegisteredLocalUser.getEmail(), created);
+        } else {
+            log.info("User {} is already registered with neo4j", newRegisteredLocalUser.getUsername());
         }
-        
     }
 
     @Override
@@ -139,55 +163,125 @@ public class CustomUserStorageProvider implements UserStorageProvider,
 
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
-        UserModel neo4jUser;
-        try (Session c = DbUtil.getSession(this.model)) {
-            neo4jUser = c.executeWrite(tx -> {
-            var query 
-                = new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_INFO_BY_NAME,
-                parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, username));
-            var result = tx.run(query).list();
-            if (result.size() == 1){
-                return mapUser(realm, result.get(0));
-            }
+        return ProviderMetrics.time(this.model, "getUserByUsername", () -> findUserByUsername(realm, username));
+    }
+
+    private UserModel findUserByUsername(RealmModel realm, String username) {
+        UserCache cache = UserCache.forComponent(this.model);
+        UserRecord cachedUser = cache.getByUsername(username);
+        if (cachedUser != null) {
+            return mapUser(realm, cachedUser);
+        }
+        NegativeLookupCache unknownUsers = NegativeLookupCache.forComponent(this.model);
+        if (unknownUsers.isMissingUsername(username)) {
             return null;
-          });
         }
-        catch(Exception ex) {
-            log.warn("Database error: unable to fetch record by username; ex={}", ex.getMessage());
-            throw new RuntimeException("Database error: unable to fetch record by username",ex);
+        // Concurrent logins of the same account share one query
+        Record neo4jUser;
+        try {
+            neo4jUser = LookupCoalescer.forComponent(this.model).load(COALESCE_USERNAME_PREFIX + username, () -> {
+            // Stamped before the query, so a user invalidated while it runs is not cached
+            long stamp = cache.stampForUsername(username);
+            Record found = guarded("getUserByUsername", () -> ShardRouter.findUser(this.model, username, database -> {
+                try (Session c = DbUtil.getShardReadSession(this.model, database)) {
+                    return c.executeRead(tx -> {
+                    var query 
+                        = new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_INFO_BY_NAME,
+                        parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, username));
+                    var result = tx.run(query).list();
+                    if (result.size() == 1){
+                        return result.get(0);
+                    }
+                    return null;
+                  }, DbUtil.transactionConfig(this.model));
+                }
+                catch(Exception ex) {
+                    log.warn("Database error: unable to fetch record by username; ex={}", ex.getMessage());
+                    throw new RuntimeException("Database error: unable to fetch record by username",ex);
+                }
+            }));
+            if (found != null) {
+                cache.put(UserRecord.from(found), stamp);
+            }
+            return found;
+            }, () -> ProviderMetrics.coalesced(this.model, "getUserByUsername"));
+        } catch (RuntimeException ex) {
+            return staleUser(realm, cache.getStaleByUsername(username), "getUserByUsername", ex);
         }
         
         // UserModel kcUser = UserStoragePrivateUtil.userLocalStorage(ksession).getUserByUsername(realm, username);
         // if (kcUser == null) {
         //     importUserToKeycloak(realm, neo4jUser);
         // }
-       return neo4jUser;
+        if (neo4jUser == null) {
+            unknownUsers.markMissingUsername(username);
+            return null;
+        }
+        return mapLoginUser(realm, UserRecord.from(neo4jUser), neo4jUser.get(CustomUserStorageProviderConstants.DB_KEY_USER_PASSWORD));
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        UserModel neo4jUser;
-        try (Session c = DbUtil.getSession(this.model)) {
-            neo4jUser = c.executeWrite(tx -> {
-            var query 
-                = new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_INFO_BY_EMAIL , 
-                parameters(CustomUserStorageProviderConstants.DB_KEY_USER_EMAIL, email));
-            var result = tx.run(query).list();
-            if (result.size() == 1){
-                return mapUser(realm, result.get(0));
-            }
+        return ProviderMetrics.time(this.model, "getUserByEmail", () -> findUserByEmail(realm, email));
+    }
+
+    private UserModel findUserByEmail(RealmModel realm, String email) {
+        UserCache cache = UserCache.forComponent(this.model);
+        UserRecord cachedUser = cache.getByEmail(email);
+        if (cachedUser != null) {
+            return mapUser(realm, cachedUser);
+        }
+        NegativeLookupCache unknownUsers = NegativeLookupCache.forComponent(this.model);
+        if (unknownUsers.isMissingEmail(email)) {
             return null;
-          });
         }
-        catch(Exception ex) {
-            log.warn("Database error: unable to fetch record by user-email: ex={}", ex.getMessage());
-            throw new RuntimeException("Database error: unable to fetch record by email",ex);
+        Record neo4jUser;
+        try {
+            neo4jUser = LookupCoalescer.forComponent(this.model).load(COALESCE_EMAIL_PREFIX + email, () -> {
+            // The username is not known yet, so any invalidation during the query counts
+            long stamp = cache.stampForAnyUser();
+            Record record = guarded("getUserByEmail", () -> {
+                // Emails are not routed; ask each shard until one knows the address
+                for (String database : ShardRouter.forComponent(this.model).databases()) {
+                    try (Session c = DbUtil.getShardReadSession(this.model, database)) {
+                        Record found = c.executeRead(tx -> {
+                        var query 
+                            = new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_INFO_BY_EMAIL , 
+                            parameters(CustomUserStorageProviderConstants.DB_KEY_USER_EMAIL, email));
+                        var result = tx.run(query).list();
+                        if (result.size() == 1){
+                            return result.get(0);
+                        }
+                        return null;
+                      }, DbUtil.transactionConfig(this.model));
+                        if (found != null) {
+                            return found;
+                        }
+                    }
+                    catch(Exception ex) {
+                        log.warn("Database error: unable to fetch record by user-email: ex={}", ex.getMessage());
+                        throw new RuntimeException("Database error: unable to fetch record by email",ex);
+                    }
+                }
+                return null;
+            });
+            if (record != null) {
+                cache.putFoundByOther(UserRecord.from(record), stamp);
+            }
+            return record;
+            }, () -> ProviderMetrics.coalesced(this.model, "getUserByEmail"));
+        } catch (RuntimeException ex) {
+            return staleUser(realm, cache.getStaleByEmail(email), "getUserByEmail", ex);
         }
         // UserModel kcUser = UserStoragePrivateUtil.userLocalStorage(ksession).getUserByUsername(realm, neo4jUser.getUsername());
         // if (kcUser == null) {
         //     importUserToKeycloak(realm, neo4jUser);
         // }
-        return neo4jUser;
+        if (neo4jUser == null) {
+            unknownUsers.markMissingEmail(email);
+            return null;
+        }
+        return mapLoginUser(realm, UserRecord.from(neo4jUser), neo4jUser.get(CustomUserStorageProviderConstants.DB_KEY_USER_PASSWORD));
     }
 
     @Override
@@ -206,139 +300,204 @@ public class CustomUserStorageProvider implements UserStorageProvider,
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
+        return ProviderMetrics.time(this.model, "isValid", () -> validatePassword(realm, user, credentialInput));
+    }
+
+    private boolean validatePassword(RealmModel realm, UserModel user, CredentialInput credentialInput) {
         if( !this.supportsCredentialType(credentialInput.getType())) {
             return false;
         }
-        StorageId sid = new StorageId(user.getId());
-        String username = sid.getExternalId();
-       
-        boolean isPasswordAuthentic = false;
-        try (Session s = DbUtil.getSession(this.model)) {
-            isPasswordAuthentic = s.executeWrite(tx -> {
-                var query = new Query(CustomUserStorageProviderConstants.QUERY_GET_PASSWORD_FOR_USER , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, username));
-                var result = tx.run(query).list();
-                if (result.size() == 1){
-                    String password = result.get(0).get("password").asString();
-                    return password.equals(credentialInput.getChallengeResponse());
-                }
-                return false;
-            });
-       }
-       catch(Exception ex) {
-           log.warn("Database error: unable to validate password: ex={}", ex.getMessage());
-           throw new RuntimeException("Database error: unable to validate password",ex);
-       }
-       return isPasswordAuthentic;
+        PasswordVerificationEngine verifier = PasswordVerificationEngine.forComponent(this.model);
+        if (user instanceof CustomUser && ((CustomUser) user).isPasswordLoaded()) {
+            // Hash came with the profile lookup of this login; no second round-trip
+            String password = ((CustomUser) user).takePasswordHash();
+            return verifier.verify(user.getUsername(), credentialInput.getChallengeResponse(), password);
+        }
+        // Imported users carry a local id rather than a federated one, so go by the username
+        String username = user.getUsername();
+
+        String password = guarded("isValid", () -> ShardRouter.findUser(this.model, username, database -> {
+            try (Session s = DbUtil.getShardReadSession(this.model, database)) {
+                return s.executeRead(tx -> {
+                    var query = new Query(CustomUserStorageProviderConstants.QUERY_GET_PASSWORD_FOR_USER , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, username));
+                    var result = tx.run(query).list();
+                    if (result.size() == 1){
+                        return result.get(0).get(CustomUserStorageProviderConstants.DB_KEY_USER_PASSWORD).asString();
+                    }
+                    return null;
+                }, DbUtil.transactionConfig(this.model));
+           }
+           catch(Exception ex) {
+               log.warn("Database error: unable to validate password: ex={}", ex.getMessage());
+               throw new RuntimeException("Database error: unable to validate password",ex);
+           }
+        }));
+       // Hashing happens outside the transaction so no pooled connection is held meanwhile
+       return verifier.verify(username, credentialInput.getChallengeResponse(), password);
     }
 
     // UserQueryProvider implementation
     
     @Override
     public int getUsersCount(RealmModel realm) {
-        int count = 0;
-        try (Session c = DbUtil.getSession(this.model)) {
-            count = c.executeWrite(tx -> {
-            var query 
-                = new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_COUNT);
-            var result = tx.run(query).list();
-            if (result.size() == 1){
-                return result.get(0).get(CustomUserStorageProviderConstants.DB_KEY_USER_COUNT).asInt();
+        return ProviderMetrics.time(this.model, "getUsersCount", () -> countUsers(realm));
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, String search) {
+        return ProviderMetrics.time(this.model, "getUsersCount.search", () -> {
+            if (isFullTextSearch()) {
+                UserSearchQuery query = UserSearchQuery.fullText(search);
+                return UserCountCache.forComponent(this.model).search(CURSOR_SEARCH_PREFIX + query.cursorKey(), () -> countUsers(query.toCountQuery()));
             }
-            return 0;
-          });
-        }
-        catch(Exception ex) {
-           log.warn("Database error: unable to get user count; ex={}", ex.getMessage());
-           throw new RuntimeException("Database error: unable to get user count",ex);
-        }
-        return count;
+            if (search == null || search.equals(CustomUserStorageProviderConstants.WILDCARD)) {
+                return countUsers(realm);
+            }
+            return UserCountCache.forComponent(this.model).search(CURSOR_SEARCH_PREFIX + search,
+                () -> countUsers(new Query(CustomUserStorageProviderConstants.QUERY_SEARCH_USER_COUNT, parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, search))));
+        });
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params) {
+        return ProviderMetrics.time(this.model, "getUsersCount.params", () -> {
+            UserSearchQuery query = UserSearchQuery.from(params, isFullTextSearch());
+            if (query == null) {
+                return 0;
+            }
+            return UserCountCache.forComponent(this.model).search(CURSOR_PARAMS_PREFIX + query.cursorKey(), () -> countUsers(query.toCountQuery()));
+        });
+    }
+
+    private int countUsers(RealmModel realm) {
+        return UserCountCache.forComponent(this.model).total(() -> countUsers(new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_COUNT)));
+    }
+
+    // Users live on exactly one shard, so the shard counts add up
+    private int countUsers(Query query) {
+        return guarded("getUsersCount", () -> {
+            int count = 0;
+            for (String database : ShardRouter.forComponent(this.model).databases()) {
+                try (Session c = DbUtil.getShardReadSession(this.model, database)) {
+                    count += c.executeRead(tx -> {
+                    var result = tx.run(query).list();
+                    if (result.size() == 1){
+                        return result.get(0).get(CustomUserStorageProviderConstants.DB_KEY_USER_COUNT).asInt();
+                    }
+                    return 0;
+                  }, DbUtil.transactionConfig(this.model));
+                }
+                catch(Exception ex) {
+                   log.warn("Database error: unable to get user count; ex={}", ex.getMessage());
+                   throw new RuntimeException("Database error: unable to get user count",ex);
+                }
+            }
+            return count;
+        });
     }
 
     @Override
     public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
         log.info("getGroupMembersStream: realm={}", realm.getName());
-        
-        List<UserModel> users = new ArrayList<>();
 
-    
-        try (Session c = DbUtil.getSession(this.model)) {
-            var txReturn = c.executeWrite(tx -> {
-                int skipRecords = firstResult;
-                if (firstResult > 0) {
-                    skipRecords = firstResult - 1;
-                };
-                var query = new Query(CustomUserStorageProviderConstants.QUERY_GET_USER_STREAM_WITH_OFFSET_MAXRECORDS
-                    , parameters(CustomUserStorageProviderConstants.RECORD_SKIP_KEY, skipRecords, CustomUserStorageProviderConstants.RECORD_LIMIT_KEY, maxResults));
-                var result = tx.run(query);
-                for (var user: result.list() )
-                {
-                    // Skip listing user thats already added to keycloak
-                    UserModel kcUser = UserStoragePrivateUtil.userLocalStorage(ksession).getUserByUsername(realm, user.get(CustomUserStorageProviderConstants.DB_KEY_USER_NAME).asString());
-                    if (kcUser != null) {   
-                        continue;
-                    }
-                    users.add(mapUser(realm,user));
-                };
-                return null;
-          });
-        }
-        catch(Exception ex) {
-           log.warn("Database error: unable to get user member stream; ex={}", ex.getMessage());
-           throw new RuntimeException("Database error: unable to get user member stream",ex);
-        }
-        return users.stream();
+        KeysetCursorCache cursors = keysetCursors(firstResult, maxResults);
+        String cursorQuery = CURSOR_GROUP_PREFIX + GroupMembership.nameOf(group);
+        String afterKey = cursors == null ? null : cursors.get(cursorQuery, firstResult);
+        var query = GroupMembership.membersQuery(this.model, group, firstResult, maxResults, afterKey);
+        return streamUsers("getGroupMembersStream", realm, query, cursors, cursorQuery, firstResult, maxResults);
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
         log.info("searchForUserStream: realm={}", realm.getName());
+        if (isFullTextSearch()) {
+            return searchUsers("searchForUserStream", realm, UserSearchQuery.fullText(search), firstResult, maxResults);
+        }
+
+        KeysetCursorCache cursors = keysetCursors(firstResult, maxResults);
+        // Skips exactly firstResult, like the keyset cursor of the same page
+        int skipRecords = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        String neo4jCompatibleSearchValue;
+        if (search.equals(CustomUserStorageProviderConstants.WILDCARD)) {
+            neo4jCompatibleSearchValue = CustomUserStorageProviderConstants.EMPTY_STRING;
+        } else {
+            neo4jCompatibleSearchValue = search;
+        }
+        String cursorQuery = CURSOR_SEARCH_PREFIX + neo4jCompatibleSearchValue;
+        String afterKey = cursors == null ? null : cursors.get(cursorQuery, firstResult);
+        log.info("user-record {} skip: {}, after: {}, maxResults: {}", neo4jCompatibleSearchValue, skipRecords, afterKey, maxResults);
+        var query = afterKey == null
+            ? new Query(CustomUserStorageProviderConstants.QUERY_SEARCH_USER_STREAM_WITH_OFFSET_MAXRECORDS
+                , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, neo4jCompatibleSearchValue,CustomUserStorageProviderConstants.RECORD_SKIP_KEY,skipRecords, CustomUserStorageProviderConstants.RECORD_LIMIT_KEY, maxResults))
+            : new Query(CustomUserStorageProviderConstants.QUERY_SEARCH_USER_STREAM_AFTER_KEY
+                , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, neo4jCompatibleSearchValue,CustomUserStorageProviderConstants.RECORD_AFTER_KEY,afterKey, CustomUserStorageProviderConstants.RECORD_LIMIT_KEY, maxResults));
+        return streamUsers("searchForUserStream", realm, query, cursors, cursorQuery, firstResult, maxResults);
+    }
 
-        List<UserModel> users = new ArrayList<>();
-
-        try (Session c = DbUtil.getSession(this.model)) {
-            var txReturn = c.executeWrite(tx -> {
-                int skipRecords = firstResult;
-                if (firstResult > 0) {
-                    skipRecords = firstResult - 1;
-                };
-                String neo4jCompatibleSearchValue;
-                if (search.equals(CustomUserStorageProviderConstants.WILDCARD)) {
-                    neo4jCompatibleSearchValue = CustomUserStorageProviderConstants.EMPTY_STRING;
-                } else {
-                    neo4jCompatibleSearchValue = search;
+    /**
+     * Maps the records of a user listing query to adapters as Keycloak consumes the stream.
+     * When keyset paging is on, the last key read is remembered as the cursor of the next page
+     * once the page has been read to the end. The call is timed until the stream is exhausted
+     * or closed.
+     */
+    private Stream<UserModel> streamUsers(String method, RealmModel realm, Query query, KeysetCursorCache cursors, String cursorQuery, Integer firstResult, Integer maxResults) {
+        ProviderMetrics.Call call = ProviderMetrics.start(this.model, method);
+        String[] lastKey = new String[1];
+        Runnable onComplete = () -> {
+            if (cursors != null && lastKey[0] != null) {
+                cursors.put(cursorQuery, firstResult + maxResults, lastKey[0]);
+            }
+            call.stop();
+        };
+        int batchSize = Math.max(1, Math.min(this.model.get(CustomUserStorageProviderConstants.CONFIG_KEY_FETCH_SIZE, CustomUserStorageProviderConstants.DEFAULT_FETCH_SIZE),
+            maxResults == null || maxResults <= 0 ? Integer.MAX_VALUE : maxResults));
+        // The key is taken as each record is read: batching reads one record ahead, which
+        // runs onComplete before the last batch reaches flatMap
+        Stream<Record> records = RecordStream.open(this.model, query, onComplete, call::failed)
+            .peek(user -> lastKey[0] = user.get(CustomUserStorageProviderConstants.DB_KEY_USER_NAME).asString());
+        return RecordStream.inBatches(records, batchSize)
+            .onClose(call::stop)
+            .flatMap(batch -> {
+                List<String> userNames = new ArrayList<>(batch.size());
+                for (Record user : batch) {
+                    userNames.add(user.get(CustomUserStorageProviderConstants.DB_KEY_USER_NAME).asString());
                 }
-                log.info("user-record {} skip: {}, maxResults: {}", neo4jCompatibleSearchValue, skipRecords, maxResults);
-                var query = new Query(CustomUserStorageProviderConstants.QUERY_SEARCH_USER_STREAM_WITH_OFFSET_MAXRECORDS
-                    , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, neo4jCompatibleSearchValue,CustomUserStorageProviderConstants.RECORD_SKIP_KEY,skipRecords, CustomUserStorageProviderConstants.RECORD_LIMIT_KEY, maxResults));
-                var result = tx.run(query);
-                for (var user: result.list() )
-                {
-                    // Skip listing user thats already added to keycloak
-                    UserModel kcUser = UserStoragePrivateUtil.userLocalStorage(ksession).getUserByUsername(realm, user.get(CustomUserStorageProviderConstants.DB_KEY_USER_NAME).asString());
-                    if (kcUser != null) {   
+                // Skip listing users thats already added to keycloak; one local storage query per batch
+                Set<String> localUsers = LocalUserLookup.findExisting(ksession, realm, userNames);
+                List<UserModel> users = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    if (localUsers.contains(userNames.get(i).toLowerCase())) {
                         continue;
                     }
-                    log.info("retrieved user stream: {}", user);
-                    users.add(mapUser(realm,user));
-                };
-                return null;
-          });
-        }
-        catch(Exception ex) {
-           log.warn("Database error: unable to get user member stream; ex={}", ex.getMessage());
-           throw new RuntimeException("Database error: unable to get user member stream",ex);
-        }
-        return users.stream();
+                    UserModel user = mapUser(realm, UserRecord.from(batch.get(i)));
+                    if (user != null) {
+                        users.add(user);
+                    }
+                }
+                return users.stream();
+            });
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-        return Stream.empty();
+        log.info("searchForUserStream: realm={}", realm.getName());
+        return searchUsers("searchForUserStream.params", realm, UserSearchQuery.from(params, isFullTextSearch()), firstResult, maxResults);
     }
 
     @Override
     public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-        return Stream.empty();
+        log.info("searchForUserByUserAttributeStream: realm={}, attribute={}", realm.getName(), attrName);
+        return searchUsers("searchForUserByUserAttributeStream", realm, UserSearchQuery.byAttribute(attrName, attrValue), null, null);
+    }
+
+    private Stream<UserModel> searchUsers(String method, RealmModel realm, UserSearchQuery search, Integer firstResult, Integer maxResults) {
+        if (search == null) {
+            return Stream.empty();
+        }
+        KeysetCursorCache cursors = search.isKeysetPageable() ? keysetCursors(firstResult, maxResults) : null;
+        String cursorQuery = CURSOR_PARAMS_PREFIX + search.cursorKey();
+        String afterKey = cursors == null ? null : cursors.get(cursorQuery, firstResult);
+        return streamUsers(method, realm, search.toQuery(firstResult, maxResults, afterKey), cursors, cursorQuery, firstResult, maxResults);
     }
     
     // Need To explore user attributes addition, roles and credentials
@@ -349,37 +508,77 @@ public class CustomUserStorageProvider implements UserStorageProvider,
 
     @Override
     public boolean removeUser(RealmModel realm, UserModel user) {
+        return ProviderMetrics.time(this.model, "removeUser", () -> deleteUser(realm, user));
+    }
+
+    private boolean deleteUser(RealmModel realm, UserModel user) {
         String userName = user.getUsername();
-        try (Session s = DbUtil.getSession(this.model)) {
-            var txReturn = s.executeWrite(tx -> {
-                var query = new Query(CustomUserStorageProviderConstants.QUERY_DELETE_USER , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, userName));
-                tx.run(query).list();
-                return null;
-            });
+        Integer deleted = guarded("removeUser", () -> ShardRouter.findUser(this.model, userName, database -> {
+            try (Session s = DbUtil.getShardSession(this.model, database)) {
+                int nodesDeleted = s.executeWrite(tx -> {
+                    var query = new Query(CustomUserStorageProviderConstants.QUERY_DELETE_USER , parameters(CustomUserStorageProviderConstants.DB_KEY_USER_NAME, userName));
+                    return tx.run(query).consume().counters().nodesDeleted();
+                }, DbUtil.transactionConfig(this.model));
+                return nodesDeleted > 0 ? nodesDeleted : null;
+            }
+            catch(Exception ex) {
+               log.warn("Database error: unable to remove user {};  ex={}", userName, ex.getMessage());
+               throw new RuntimeException("Database error: unable to remove user",ex);
+            }
+        }));
+        ClusterInvalidation.userChanged(this.ksession, this.model, userName, user.getEmail(), deleted == null ? 0 : -deleted);
+        return true;
+    }
+    // Bulkhead and circuit breaker around one Neo4j call
+    private <T> T guarded(String method, Supplier<T> call) {
+        return Neo4jGuard.forComponent(this.model).call(this.model, method, call);
+    }
+
+    // While Neo4j cannot be asked, the last known profile beats failing the request
+    private UserModel staleUser(RealmModel realm, UserRecord stale, String method, RuntimeException ex) {
+        if (stale == null || !this.model.get(CustomUserStorageProviderConstants.CONFIG_KEY_SERVE_STALE_ON_FAILURE, true)) {
+            throw ex;
         }
-        catch(Exception ex) {
-           log.warn("Database error: unable to remove user {};  ex={}", userName, ex.getMessage());
-           throw new RuntimeException("Database error: unable to remove user",ex);
+        log.warn("Serving cached data of user {} while neo4j is unavailable; ex={}", stale.getUserName(), ex.getMessage());
+        ProviderMetrics.staleRead(this.model, method);
+        return mapUser(realm, stale);
+    }
+
+    private boolean isFullTextSearch() {
+        return CustomUserStorageProviderConstants.SEARCH_MODE_FULLTEXT.equals(this.model.get(CustomUserStorageProviderConstants.CONFIG_KEY_SEARCH_MODE, CustomUserStorageProviderConstants.DEFAULT_SEARCH_MODE));
+    }
+
+    // Keyset paging needs a concrete page window to know which offset the next page starts at
+    private KeysetCursorCache keysetCursors(Integer firstResult, Integer maxResults) {
+        if (firstResult == null || maxResults == null || maxResults <= 0 || !KeysetCursorCache.isEnabled(this.model)) {
+            return null;
         }
-        return true;
+        return KeysetCursorCache.forComponent(this.model);
     }
-    private UserModel mapUser(RealmModel realm, MapAccessor rs)  {
-        
-        DateFormat dateFormat = new SimpleDateFormat(CustomUserStorageProviderConstants.DB_KEY_BIRTH_DATE_FORMAT);
-        Date date;
-        try {
-            date = dateFormat.parse(rs.get(CustomUserStorageProviderConstants.DB_KEY_USER_BIRTHDATE).asString());
-        } catch (ParseException e) {
-           return null;
+
+    private UserModel mapUser(RealmModel realm, UserRecord rs)  {
+        CustomUser.Builder user = userBuilder(realm, rs);
+        return user == null ? null : user.build();
+    }
+
+    private UserModel mapLoginUser(RealmModel realm, UserRecord rs, Value password)  {
+        CustomUser.Builder user = userBuilder(realm, rs);
+        return user == null ? null : user.passwordHash(password.isNull() ? null : password.asString()).build();
+    }
+
+    // Rows that cannot be mapped are skipped and counted rather than returned as null users
+    private CustomUser.Builder userBuilder(RealmModel realm, UserRecord rs)  {
+        if (rs.getMalformedReason() != null) {
+            log.debug("Skipping neo4j user {}: {}", rs.getUserName(), rs.getMalformedReason());
+            ProviderMetrics.skippedRow(this.model, rs.getMalformedReason());
+            return null;
         }
-        CustomUser user = new CustomUser.Builder(ksession, realm, model, rs.get(CustomUserStorageProviderConstants.DB_KEY_USER_NAME).asString())
-          .email(rs.get(CustomUserStorageProviderConstants.DB_KEY_USER_EMAIL).asString())
-          .firstName(rs.get(CustomUserStorageProviderConstants.DB_KEY_USER_FIRST_NAME).asString())
-          .lastName(rs.get(CustomUserStorageProviderConstants.DB_KEY_USER_LAST_NAME).asString())
-          .birthDate(date)
-          .build();
-        
-        return user;
+        return new CustomUser.Builder(ksession, realm, model, rs.getUserName())
+          .email(rs.getEmail())
+          .firstName(rs.getFirstName())
+          .lastName(rs.getLastName())
+          .birthDate(rs.getParsedBirthDate())
+          .groups(() -> ProviderMetrics.time(this.model, "getGroups", () -> GroupMembership.groupsOf(this.model, realm, rs)));
     }
 
 }
@@ -5,7 +5,92 @@ public final class CustomUserStorageProviderConstants {
     public static final String CONFIG_KEY_NEO4J_CONNECTION_URL = "connectionUrl";
     public static final String CONFIG_KEY_DB_USERNAME = "username";
     public static final String CONFIG_KEY_DB_PASSWORD = "password";
+    public static final String CONFIG_KEY_DATABASE = "database";
+    public static final String CONFIG_KEY_SHARD_DATABASES = "shardDatabases";
+    public static final String CONFIG_KEY_SHARD_MIGRATION_LOOKUP = "shardMigrationLookup";
     public static final String CONFIG_KEY_VALIDATION_QUERY = "validationQuery";
+    public static final String CONFIG_KEY_MAX_CONNECTION_POOL_SIZE = "maxConnectionPoolSize";
+    public static final String CONFIG_KEY_CONNECTION_ACQUISITION_TIMEOUT = "connectionAcquisitionTimeout";
+    public static final String CONFIG_KEY_MAX_CONNECTION_LIFETIME = "maxConnectionLifetime";
+    public static final int DEFAULT_MAX_CONNECTION_POOL_SIZE = 100;
+    public static final long DEFAULT_CONNECTION_ACQUISITION_TIMEOUT_MS = 60000L;
+    public static final String CONFIG_KEY_QUERY_TIMEOUT = "queryTimeout";
+    public static final long DEFAULT_QUERY_TIMEOUT_MS = 5000L;
+    public static final String CONFIG_KEY_BULKHEAD_MAX_CONCURRENT_CALLS = "bulkheadMaxConcurrentCalls";
+    public static final String CONFIG_KEY_BULKHEAD_MAX_WAIT = "bulkheadMaxWait";
+    public static final int DEFAULT_BULKHEAD_MAX_CONCURRENT_CALLS = 100;
+    public static final long DEFAULT_BULKHEAD_MAX_WAIT_MS = 100L;
+    public static final String CONFIG_KEY_CIRCUIT_BREAKER_ENABLED = "circuitBreakerEnabled";
+    public static final String CONFIG_KEY_CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRate";
+    public static final String CONFIG_KEY_CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreakerWindowSize";
+    public static final String CONFIG_KEY_CIRCUIT_BREAKER_OPEN_DURATION = "circuitBreakerOpenDuration";
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+    public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS = 30000L;
+    public static final String CONFIG_KEY_SERVE_STALE_ON_FAILURE = "serveStaleOnFailure";
+    public static final long DEFAULT_MAX_CONNECTION_LIFETIME_MS = 3600000L;
+    public static final String CONFIG_KEY_FETCH_SIZE = "fetchSize";
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    public static final String CONFIG_KEY_USER_CACHE_MAX_SIZE = "userCacheMaxSize";
+    public static final String CONFIG_KEY_USER_CACHE_TTL = "userCacheTtl";
+    public static final int DEFAULT_USER_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_USER_CACHE_TTL_SECONDS = 60L;
+    public static final String CONFIG_KEY_NEGATIVE_CACHE_TTL = "negativeCacheTtl";
+    public static final String CONFIG_KEY_NEGATIVE_CACHE_MAX_SIZE = "negativeCacheMaxSize";
+    public static final String CONFIG_KEY_BLOOM_FILTER_ENABLED = "bloomFilterEnabled";
+    public static final String CONFIG_KEY_BLOOM_FILTER_REFRESH_INTERVAL = "bloomFilterRefreshInterval";
+    public static final long DEFAULT_NEGATIVE_CACHE_TTL_SECONDS = 30L;
+    public static final String CONFIG_KEY_COUNT_CACHE_TTL = "countCacheTtl";
+    public static final long DEFAULT_COUNT_CACHE_TTL_SECONDS = 30L;
+    public static final int DEFAULT_NEGATIVE_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_BLOOM_FILTER_REFRESH_INTERVAL_SECONDS = 900L;
+    public static final String CONFIG_KEY_PASSWORD_HASH_ALGORITHM = "passwordHashAlgorithm";
+    public static final String CONFIG_KEY_PASSWORD_HASH_ITERATIONS = "passwordHashIterations";
+    public static final String CONFIG_KEY_PASSWORD_REHASH_ON_LOGIN = "passwordRehashOnLogin";
+    public static final String CONFIG_KEY_PASSWORD_VERIFIER_THREADS = "passwordVerifierThreads";
+    public static final String CONFIG_KEY_PASSWORD_VERIFIER_QUEUE_SIZE = "passwordVerifierQueueSize";
+    public static final String CONFIG_KEY_PASSWORD_VERIFIER_TIMEOUT = "passwordVerifierTimeout";
+    public static final String PASSWORD_HASH_PBKDF2_SHA256 = "pbkdf2-sha256";
+    public static final String PASSWORD_HASH_PBKDF2_SHA512 = "pbkdf2-sha512";
+    public static final String DEFAULT_PASSWORD_HASH_ALGORITHM = PASSWORD_HASH_PBKDF2_SHA256;
+    public static final int DEFAULT_PASSWORD_HASH_ITERATIONS = 27500;
+    public static final int DEFAULT_PASSWORD_VERIFIER_QUEUE_SIZE = 256;
+    public static final long DEFAULT_PASSWORD_VERIFIER_TIMEOUT_MS = 10000L;
+    public static final String CONFIG_KEY_PAGINATION_MODE = "paginationMode";
+    public static final String PAGINATION_MODE_OFFSET = "offset";
+    public static final String PAGINATION_MODE_KEYSET = "keyset";
+    public static final String DEFAULT_PAGINATION_MODE = PAGINATION_MODE_OFFSET;
+    public static final String CONFIG_KEY_SEARCH_MODE = "searchMode";
+    public static final String SEARCH_MODE_CONTAINS = "contains";
+    public static final String SEARCH_MODE_FULLTEXT = "fulltext";
+    public static final String DEFAULT_SEARCH_MODE = SEARCH_MODE_CONTAINS;
+    public static final String FULLTEXT_INDEX_NAME = "user_search_fulltext";
+    public static final String CONFIG_KEY_GROUP_NESTING_DEPTH = "groupNestingDepth";
+    public static final int DEFAULT_GROUP_NESTING_DEPTH = 0;
+    public static final String CONFIG_KEY_SCHEMA_MANAGEMENT = "schemaManagement";
+    public static final String CONFIG_KEY_SCHEMA_AWAIT_TIMEOUT = "schemaAwaitTimeout";
+    public static final String SCHEMA_MANAGEMENT_NONE = "none";
+    public static final String SCHEMA_MANAGEMENT_VALIDATE = "validate";
+    public static final String SCHEMA_MANAGEMENT_CREATE = "create";
+    public static final String DEFAULT_SCHEMA_MANAGEMENT = SCHEMA_MANAGEMENT_VALIDATE;
+    public static final long DEFAULT_SCHEMA_AWAIT_TIMEOUT_SECONDS = 300L;
+    public static final String CONFIG_KEY_WRITE_BEHIND_ENABLED = "writeBehindEnabled";
+    public static final String CONFIG_KEY_WRITE_BEHIND_BATCH_SIZE = "writeBehindBatchSize";
+    public static final String CONFIG_KEY_WRITE_BEHIND_FLUSH_INTERVAL = "writeBehindFlushInterval";
+    public static final String CONFIG_KEY_WRITE_BEHIND_CAPACITY = "writeBehindCapacity";
+    public static final String CONFIG_KEY_WRITE_BEHIND_MAX_RETRIES = "writeBehindMaxRetries";
+    public static final String CONFIG_KEY_WRITE_BEHIND_SPILL_DIRECTORY = "writeBehindSpillDirectory";
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 500;
+    public static final long DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MS = 1000L;
+    public static final int DEFAULT_WRITE_BEHIND_CAPACITY = 10000;
+    public static final int DEFAULT_WRITE_BEHIND_MAX_RETRIES = 5;
+    public static final String DEFAULT_WRITE_BEHIND_SPILL_DIRECTORY = "keycloak-neo4j-write-behind";
+    public static final String CONFIG_KEY_SYNC_PAGE_SIZE = "syncPageSize";
+    public static final String CONFIG_KEY_SYNC_CHUNK_SIZE = "syncChunkSize";
+    public static final String CONFIG_KEY_SYNC_THREADS = "syncThreads";
+    public static final int DEFAULT_SYNC_PAGE_SIZE = 5000;
+    public static final int DEFAULT_SYNC_CHUNK_SIZE = 250;
+    public static final int DEFAULT_SYNC_THREADS = 4;
     public static final String WILDCARD = "*";
     public static final String EMPTY_STRING = "";
     public static final String ATTRIBUTE_USER_SOURCE_KEY = "userSource";    
@@ -18,6 +103,12 @@ public final class CustomUserStorageProviderConstants {
     public static final String DB_KEY_USER_BIRTHDATE = "birthDate";   
     public static final String DB_KEY_USER_FIRST_NAME = "firstName";      
     public static final String DB_KEY_USER_LAST_NAME = "lastName";  
+    public static final String DB_KEY_USER_PASSWORD = "password";
+    public static final String DB_KEY_PASSWORD_HASH = "hash";
+    public static final String DB_KEY_GROUP_NAME = "name";
+    public static final String DB_KEY_GROUP_NAMES = "names";
+    public static final String DB_KEY_USER_NAMES = "userNames";
+    public static final String DB_KEY_OLD_PASSWORD_HASH = "oldHash";
 
 
     public static final String DB_KEY_BIRTH_DATE_FORMAT =  "yyyy-MM-dd";
@@ -26,20 +117,39 @@ public final class CustomUserStorageProviderConstants {
     
     public static final String RECORD_SKIP_KEY = "skip";    
     public static final String RECORD_LIMIT_KEY = "maxResults";
+    public static final String RECORD_AFTER_KEY = "after";
+    public static final String DB_KEY_HITS = "hits";
+    public static final String DB_KEY_SCORE = "score";
+    public static final String DB_KEY_TIMEOUT = "timeout";
+    public static final String DB_KEY_ROWS = "rows";
+    public static final String DB_KEY_SINCE = "since";
+    public static final String DB_KEY_LAST_MODIFIED = "lastModified";
     public static final String NEO4J_PROVIDER_ID = "custom-neo4j-user-provider";    
     public static final String KC_RESOURCE_PATH_USER_SUFFIX = "users/";
-    public static final String KC_EVENT_CREATE = "CREATE";
 
 
 
 
 
-    public static final String QUERY_GET_USER_INFO_BY_NAME = "MATCH (u:User {userName: $userName}) RETURN u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate LIMIT 1;";
-    public static final String QUERY_GET_USER_INFO_BY_EMAIL =  "MATCH (u:User {email: $email}) RETURN u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate LIMIT 1;" ;
+    // Login-path lookups return the profile and the password hash in a single round-trip
+    public static final String QUERY_GET_USER_INFO_BY_NAME = "MATCH (u:User {userName: $userName}) OPTIONAL MATCH (u)-[:HAS_PASSWORD]->(p:Password) RETURN u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate, p.hash as password LIMIT 1;";
+    public static final String QUERY_GET_USER_INFO_BY_EMAIL =  "MATCH (u:User {email: $email}) OPTIONAL MATCH (u)-[:HAS_PASSWORD]->(p:Password) RETURN u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate, p.hash as password LIMIT 1;" ;
     public static final String QUERY_GET_PASSWORD_FOR_USER = "MATCH (user:User {userName: $userName}) -[:HAS_PASSWORD]-> (password:Password) RETURN password.hash as password LIMIT 1" ;
+    public static final String QUERY_UPDATE_PASSWORD_HASH = "MATCH (u:User {userName: $userName})-[:HAS_PASSWORD]->(p:Password) WHERE p.hash = $oldHash SET p.hash = $hash;";
+    // A label-only count is answered from Neo4j's count store without touching any node
     public static final String QUERY_GET_USER_COUNT = "Match (u:User) Return COUNT(u) as count;";
-    public static final String QUERY_GET_USER_STREAM_WITH_OFFSET_MAXRECORDS = "Match (u:User) Return u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate ORDER BY u.userName SKIP $skip LIMIT $maxResults;";
+    public static final String QUERY_GET_USER_STREAM_AFTER_KEY = "Match (u:User) where u.userName > $after Return u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate ORDER BY u.userName LIMIT $maxResults;";
+    public static final String QUERY_GET_CHANGED_USER_STREAM_AFTER_KEY = "Match (u:User) where u.userName > $after AND coalesce(u.lastModified, 0) >= $since Return u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate ORDER BY u.userName LIMIT $maxResults;";
+    public static final String QUERY_SEARCH_USER_STREAM_AFTER_KEY = "Match (u:User) where u.userName > $after AND u.userName CONTAINS $userName Return u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate ORDER BY u.userName LIMIT $maxResults;";
     public static final String QUERY_SEARCH_USER_STREAM_WITH_OFFSET_MAXRECORDS = "Match (u:User) where u.userName CONTAINS $userName Return u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate ORDER BY u.userName SKIP $skip LIMIT $maxResults;";
-    public static final String QUERY_CREATE_USER = "CREATE (:User {firstName: $firstName, lastName: $lastName,email: $email,userName: $userName});";
+    public static final String QUERY_SEARCH_USER_COUNT = "Match (u:User) where u.userName CONTAINS $userName Return COUNT(u) as count;";
+    public static final String QUERY_GET_ALL_USER_KEYS = "MATCH (u:User) RETURN u.userName as userName, u.email as email;";
+    public static final String QUERY_SHOW_INDEXES = "SHOW INDEXES YIELD name, type, labelsOrTypes, properties, state";
+    public static final String QUERY_SHOW_CONSTRAINTS = "SHOW CONSTRAINTS YIELD name, type, labelsOrTypes, properties, ownedIndex";
+    public static final String QUERY_AWAIT_INDEXES = "CALL db.awaitIndexes($timeout)";
+    public static final String QUERY_CREATE_USER = "CREATE (:User {firstName: $firstName, lastName: $lastName,email: $email,userName: $userName, lastModified: timestamp()});";
+    // Idempotent, so a batch replayed after a partial failure does not duplicate users
+    public static final String QUERY_MERGE_USERS = "UNWIND $rows AS row MERGE (u:User {userName: row.userName}) ON CREATE SET u.firstName = row.firstName, u.lastName = row.lastName, u.email = row.email, u.lastModified = timestamp();";
+    public static final String QUERY_GET_EXISTING_USER_NAMES = "UNWIND $userNames AS name MATCH (u:User {userName: name}) RETURN DISTINCT u.userName as userName;";
     public static final String QUERY_DELETE_USER = "MATCH (u:User {userName: $userName}) DETACH DELETE u;";
 }
\ No newline at end of file
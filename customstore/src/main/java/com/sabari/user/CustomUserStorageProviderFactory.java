@@ -1,6 +1,9 @@
 package com.sabari.user;
 
+import org.neo4j.driver.Driver;
 import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import java.util.Date;
 import java.util.List;
 
 import org.neo4j.driver.Query;
@@ -8,16 +11,20 @@ import org.neo4j.driver.Query;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.sabari.user.CustomUserStorageProviderConstants.*;
 
-public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider> {
+public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider>, ImportSynchronization {
     private static final Logger log = LoggerFactory.getLogger(CustomUserStorageProviderFactory.class);    
     protected final List<ProviderConfigProperty> configMetadata;
     
@@ -31,7 +38,7 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
             .label("Neo4j Driver Class")
             .type(ProviderConfigProperty.STRING_TYPE)
             .defaultValue("neo4j")
-            .helpText("Neo4j Driver Class being used for connections")
+            .helpText("Neo4j URI scheme being used for connections; neo4j (or neo4j+s) routes reads to followers and read replicas of a cluster")
             .add()
           .property()
             .name(CONFIG_KEY_NEO4J_CONNECTION_URL)
@@ -52,6 +59,25 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
             .helpText("Password used to connect to the database")
             .secret(true)
             .add()
+          .property()
+            .name(CONFIG_KEY_DATABASE)
+            .label("Database")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Neo4j database holding this realm's users; empty uses the server's default database")
+            .add()
+          .property()
+            .name(CONFIG_KEY_SHARD_DATABASES)
+            .label("Shard Databases")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Comma-separated Neo4j databases to spread users over by a consistent hash of the username; replaces Database when set. Groups must exist in every shard holding their members. Changing the list changes the owning shard of some users without moving them; enable Shard Migration Lookup until they are migrated to their owning shard")
+            .add()
+          .property()
+            .name(CONFIG_KEY_SHARD_MIGRATION_LOOKUP)
+            .label("Shard Migration Lookup")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Look for users missing from their owning shard on every other shard, and log the ones found there. Needed after the shard list changed until users are migrated; costs a query per shard for every unknown username")
+            .defaultValue("false")
+            .add()
           .property()
             .name(CONFIG_KEY_VALIDATION_QUERY)
             .label("Validation Query")
@@ -59,10 +85,299 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
             .helpText("Query used to validate a connection")
             .defaultValue("MATCH (n) RETURN n LIMIT 1;")
             .add()
+          .property()
+            .name(CONFIG_KEY_MAX_CONNECTION_POOL_SIZE)
+            .label("Max Connection Pool Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of pooled connections per Neo4j host")
+            .defaultValue(String.valueOf(DEFAULT_MAX_CONNECTION_POOL_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CONNECTION_ACQUISITION_TIMEOUT)
+            .label("Connection Acquisition Timeout (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long a lookup waits for a pooled connection before failing")
+            .defaultValue(String.valueOf(DEFAULT_CONNECTION_ACQUISITION_TIMEOUT_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_MAX_CONNECTION_LIFETIME)
+            .label("Max Connection Lifetime (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Pooled connections older than this are closed and replaced")
+            .defaultValue(String.valueOf(DEFAULT_MAX_CONNECTION_LIFETIME_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_FETCH_SIZE)
+            .label("Fetch Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Records pulled from Neo4j per batch while a user listing is streamed")
+            .defaultValue(String.valueOf(DEFAULT_FETCH_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_USER_CACHE_MAX_SIZE)
+            .label("User Cache Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of Neo4j users kept in memory; 0 disables the cache")
+            .defaultValue(String.valueOf(DEFAULT_USER_CACHE_MAX_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_USER_CACHE_TTL)
+            .label("User Cache TTL (s)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a cached user profile is served before it is read from Neo4j again. Users created or removed through any node of the cluster are dropped right away; the TTL only bounds changes made directly in Neo4j")
+            .defaultValue(String.valueOf(DEFAULT_USER_CACHE_TTL_SECONDS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_NEGATIVE_CACHE_TTL)
+            .label("Unknown User Cache TTL (s)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a username or email that Neo4j does not know is answered from memory; 0 disables")
+            .defaultValue(String.valueOf(DEFAULT_NEGATIVE_CACHE_TTL_SECONDS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_NEGATIVE_CACHE_MAX_SIZE)
+            .label("Unknown User Cache Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of unknown usernames and emails remembered")
+            .defaultValue(String.valueOf(DEFAULT_NEGATIVE_CACHE_MAX_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_COUNT_CACHE_TTL)
+            .label("User Count Cache TTL (s)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long user and search counts are reused; the total follows users created or deleted through Keycloak, changes made directly in Neo4j show after this. 0 disables")
+            .defaultValue(String.valueOf(DEFAULT_COUNT_CACHE_TTL_SECONDS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_BLOOM_FILTER_ENABLED)
+            .label("Known User Bloom Filter")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Keep a Bloom filter of all Neo4j usernames and emails; users added to Neo4j outside Keycloak are unknown until the next refresh")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_BLOOM_FILTER_REFRESH_INTERVAL)
+            .label("Bloom Filter Refresh Interval (s)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds between background reloads of the known user Bloom filter")
+            .defaultValue(String.valueOf(DEFAULT_BLOOM_FILTER_REFRESH_INTERVAL_SECONDS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_HASH_ALGORITHM)
+            .label("Password Hash Algorithm")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(PASSWORD_HASH_PBKDF2_SHA256, PASSWORD_HASH_PBKDF2_SHA512, BCryptPasswordVerifier.ID, Argon2PasswordVerifier.ID)
+            .helpText("Algorithm used when a password hash is upgraded on login. Stored hashes carry their algorithm as a {id} prefix; hashes without one are plain text")
+            .defaultValue(DEFAULT_PASSWORD_HASH_ALGORITHM)
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_HASH_ITERATIONS)
+            .label("PBKDF2 Iterations")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Iterations used for new PBKDF2 hashes; PBKDF2 hashes with fewer iterations count as weaker")
+            .defaultValue(String.valueOf(DEFAULT_PASSWORD_HASH_ITERATIONS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_REHASH_ON_LOGIN)
+            .label("Rehash Passwords On Login")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("After a successful login, replace a hash made with a weaker algorithm or parameters")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_VERIFIER_THREADS)
+            .label("Password Verifier Threads")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Threads dedicated to password hashing; 0 uses one per CPU")
+            .defaultValue("0")
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_VERIFIER_QUEUE_SIZE)
+            .label("Password Verifier Queue Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Logins waiting for a verifier thread beyond this limit are rejected")
+            .defaultValue(String.valueOf(DEFAULT_PASSWORD_VERIFIER_QUEUE_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_VERIFIER_TIMEOUT)
+            .label("Password Verifier Timeout (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long a login waits for its password check, including time queued")
+            .defaultValue(String.valueOf(DEFAULT_PASSWORD_VERIFIER_TIMEOUT_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_PAGINATION_MODE)
+            .label("Pagination Mode")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(PAGINATION_MODE_OFFSET, PAGINATION_MODE_KEYSET)
+            .helpText("keyset continues each page after the last userName of the previous one instead of skipping rows; requires unique userNames")
+            .defaultValue(DEFAULT_PAGINATION_MODE)
+            .add()
+          .property()
+            .name(CONFIG_KEY_SEARCH_MODE)
+            .label("Search Mode")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(SEARCH_MODE_CONTAINS, SEARCH_MODE_FULLTEXT)
+            .helpText("fulltext answers free-text searches from the user_search_fulltext index over userName, email, firstName and lastName, with prefix and fuzzy matching ranked by relevance, instead of a CONTAINS scan")
+            .defaultValue(DEFAULT_SEARCH_MODE)
+            .add()
+          .property()
+            .name(CONFIG_KEY_GROUP_NESTING_DEPTH)
+            .label("Group Nesting Depth")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Levels of (:Group)-[:MEMBER_OF]->(:Group) nesting followed when resolving group members and a user's groups; 0 uses direct (:User)-[:MEMBER_OF]->(:Group) membership only")
+            .defaultValue(String.valueOf(DEFAULT_GROUP_NESTING_DEPTH))
+            .add()
+          .property()
+            .name(CONFIG_KEY_SCHEMA_MANAGEMENT)
+            .label("Schema Management")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(SCHEMA_MANAGEMENT_NONE, SCHEMA_MANAGEMENT_VALIDATE, SCHEMA_MANAGEMENT_CREATE)
+            .helpText("On save, report (validate) or also create (create) the userName uniqueness constraint, the text indexes on userName, email, firstName and lastName and the range indexes on email, firstName, lastName and lastModified and the Group name range index that the queries rely on, plus the full-text index in fulltext search mode")
+            .defaultValue(DEFAULT_SCHEMA_MANAGEMENT)
+            .add()
+          .property()
+            .name(CONFIG_KEY_SCHEMA_AWAIT_TIMEOUT)
+            .label("Schema Await Timeout (s)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long saving waits for newly created indexes to come online")
+            .defaultValue(String.valueOf(DEFAULT_SCHEMA_AWAIT_TIMEOUT_SECONDS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WRITE_BEHIND_ENABLED)
+            .label("Asynchronous User Registration")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Register users created in the admin console with Neo4j in background batches instead of during the admin request")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_WRITE_BEHIND_BATCH_SIZE)
+            .label("Registration Batch Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of users written to Neo4j in one transaction")
+            .defaultValue(String.valueOf(DEFAULT_WRITE_BEHIND_BATCH_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WRITE_BEHIND_FLUSH_INTERVAL)
+            .label("Registration Flush Interval (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long a registration may wait for its batch to fill before it is written anyway")
+            .defaultValue(String.valueOf(DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WRITE_BEHIND_CAPACITY)
+            .label("Registration Queue Capacity")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Registrations beyond this many pending ones are written straight to the spill file")
+            .defaultValue(String.valueOf(DEFAULT_WRITE_BEHIND_CAPACITY))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WRITE_BEHIND_MAX_RETRIES)
+            .label("Registration Max Retries")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Retries, with exponential backoff, before a failed batch is moved to the spill file")
+            .defaultValue(String.valueOf(DEFAULT_WRITE_BEHIND_MAX_RETRIES))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WRITE_BEHIND_SPILL_DIRECTORY)
+            .label("Registration Spill Directory")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Directory on durable storage holding registrations that could not be written yet; they are replayed once Neo4j is reachable. Required for asynchronous user registration")
+            .add()
+          .property()
+            .name(CONFIG_KEY_SYNC_PAGE_SIZE)
+            .label("Sync Page Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Users read from Neo4j per keyset page during synchronization; the resume checkpoint is saved after each page. "
+                + "Changed users sync selects users by their lastModified property (epoch milliseconds): applications writing users to Neo4j directly must set it, and users without it are synchronized on every run")
+            .defaultValue(String.valueOf(DEFAULT_SYNC_PAGE_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_SYNC_CHUNK_SIZE)
+            .label("Sync Chunk Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Users imported per Keycloak transaction during synchronization")
+            .defaultValue(String.valueOf(DEFAULT_SYNC_CHUNK_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_SYNC_THREADS)
+            .label("Sync Threads")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Chunks imported in parallel during synchronization")
+            .defaultValue(String.valueOf(DEFAULT_SYNC_THREADS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_QUERY_TIMEOUT)
+            .label("Query Timeout (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Deadline of each Neo4j transaction, including retries of transient errors; 0 disables it")
+            .defaultValue(String.valueOf(DEFAULT_QUERY_TIMEOUT_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_BULKHEAD_MAX_CONCURRENT_CALLS)
+            .label("Max Concurrent Neo4j Calls")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Neo4j calls this provider may have in flight; further calls wait for a slot. 0 removes the limit")
+            .defaultValue(String.valueOf(DEFAULT_BULKHEAD_MAX_CONCURRENT_CALLS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_BULKHEAD_MAX_WAIT)
+            .label("Max Wait for a Neo4j Call (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long a call waits for a free slot before it is rejected")
+            .defaultValue(String.valueOf(DEFAULT_BULKHEAD_MAX_WAIT_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CIRCUIT_BREAKER_ENABLED)
+            .label("Circuit Breaker")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Stop calling Neo4j for a while once too many recent calls have failed")
+            .defaultValue("true")
+            .add()
+          .property()
+            .name(CONFIG_KEY_CIRCUIT_BREAKER_FAILURE_RATE)
+            .label("Circuit Breaker Failure Rate (%)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Percentage of failed calls in the window at which the circuit opens")
+            .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CIRCUIT_BREAKER_WINDOW_SIZE)
+            .label("Circuit Breaker Window")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Number of most recent calls the failure rate is computed over")
+            .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_DURATION)
+            .label("Circuit Breaker Open Duration (ms)")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("How long calls are rejected before a few trial calls test Neo4j again")
+            .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_SERVE_STALE_ON_FAILURE)
+            .label("Serve Cached Users on Failure")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("When Neo4j cannot be reached, answer user lookups from expired cache entries instead of failing")
+            .defaultValue("true")
+            .add()
           .build();   
           
     }
 
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        ClusterInvalidation.register(factory);
+        // Removing a realm deletes its components without calling preRemove
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+                realmRemoved(removed.getKeycloakSession(), removed.getRealm());
+            }
+        });
+    }
+
     @Override
     public CustomUserStorageProvider create(KeycloakSession ksession, ComponentModel model) {
         return new CustomUserStorageProvider(ksession,model);
@@ -83,26 +398,157 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
         
-       try (Session c = DbUtil.getSession(config)) {
-          log.info("Testing connection..." );
-          var txReturn = c.executeWrite(tx -> {
-            var query = new Query(config.get(CONFIG_KEY_VALIDATION_QUERY));
-            var result = tx.run(query).list();
-            return result;
-          });
-          log.info("Connection OK !" );
+       // Spilled registrations must survive a restart, which java.io.tmpdir does not promise
+       String spillDirectory = config.get(CONFIG_KEY_WRITE_BEHIND_SPILL_DIRECTORY);
+       if (UserWriteBehindQueue.isEnabled(config) && (spillDirectory == null || spillDirectory.isBlank())) {
+          throw new ComponentValidationException("Asynchronous user registration needs a registration spill directory on durable storage");
        }
-       catch(Exception ex) {
-           log.warn("[W94] Unable to validate connection: ex={}", ex.getMessage());
-           throw new ComponentValidationException("Unable to validate database connection",ex);
+
+       // Validate against a throwaway driver so an unsaved configuration never lands in the shared pool
+       try (Driver driver = DbUtil.createDriver(config)) {
+          for (String database : ShardRouter.databases(config)) {
+             try (Session c = driver.session(database == null ? SessionConfig.defaultConfig() : SessionConfig.forDatabase(database))) {
+                log.info("Testing connection to database {}...", database == null ? "(default)" : database);
+                var txReturn = c.executeWrite(tx -> {
+                  var query = new Query(config.get(CONFIG_KEY_VALIDATION_QUERY));
+                  var result = tx.run(query).list();
+                  return result;
+                });
+                log.info("Connection OK !" );
+             }
+             catch(Exception ex) {
+                 log.warn("[W94] Unable to validate connection: ex={}", ex.getMessage());
+                 throw new ComponentValidationException("Unable to validate database connection",ex);
+             }
+          }
+
+          List<String> notOnline;
+          try {
+             notOnline = SchemaManager.ensure(driver, config);
+          }
+          catch(Exception ex) {
+              log.warn("Unable to check Neo4j schema: ex={}", ex.getMessage());
+              throw new ComponentValidationException("Unable to check Neo4j indexes and constraints",ex);
+          }
+          // Missing indexes only slow lookups down; they are fatal only when we were asked to create them
+          if (!notOnline.isEmpty() && SCHEMA_MANAGEMENT_CREATE.equals(config.get(CONFIG_KEY_SCHEMA_MANAGEMENT, DEFAULT_SCHEMA_MANAGEMENT))) {
+              throw new ComponentValidationException("Neo4j indexes are not online: " + String.join(", ", notOnline));
+          }
        }
     }
 
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (!model.isImportEnabled()) {
+            log.info("Import is disabled for component {}; nothing to synchronize", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        log.info("Full neo4j user sync started for component {}", model.getName());
+        SynchronizationResult result = new UserImporter(sessionFactory, realmId, model).importAll();
+        log.info("Full neo4j user sync finished for component {}: {}", model.getName(), result.getStatus());
+        return result;
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (lastSync == null) {
+            return sync(sessionFactory, realmId, model);
+        }
+        if (!model.isImportEnabled()) {
+            log.info("Import is disabled for component {}; nothing to synchronize", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        log.info("Changed users sync started for component {} since {}", model.getName(), lastSync);
+        SynchronizationResult result = new UserImporter(sessionFactory, realmId, model).importChangedSince(lastSync.getTime());
+        log.info("Changed users sync finished for component {}: {}", model.getName(), result.getStatus());
+        return result;
+    }
+
     @Override
     public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        componentUpdated(newModel);
+        RealmComponentCache.invalidate(realm.getId());
+        ClusterInvalidation.componentUpdated(session, newModel);
     }
 
     @Override
     public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        DbUtil.drivers().refresh(model);
+        RealmComponentCache.invalidate(realm.getId());
+        ClusterInvalidation.componentCreated(session, model);
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        componentRemoved(model.getId());
+        UserImporter.removeCheckpoint(realm, model.getId());
+        RealmComponentCache.invalidate(realm.getId());
+        ClusterInvalidation.componentRemoved(session, model);
+    }
+
+    @Override
+    public void close() {
+        RealmComponentCache.clear();
+        UserWriteBehindQueue.queues().closeAll();
+        DbUtil.drivers().closeAll();
+        UserCache.caches().closeAll();
+        NegativeLookupCache.caches().closeAll();
+        PasswordVerificationEngine.engines().closeAll();
+        KeysetCursorCache.caches().closeAll();
+        UserCountCache.caches().closeAll();
+        LookupCoalescer.coalescers().closeAll();
+        Neo4jGuard.guards().closeAll();
+        ShardRouter.routers().closeAll();
+    }
+
+    private static void realmRemoved(KeycloakSession session, RealmModel realm) {
+        for (ComponentModel component : RealmComponentCache.neo4jComponentsOf(realm)) {
+            componentRemoved(component.getId());
+            UserImporter.removeCheckpoint(realm, component.getId());
+            ClusterInvalidation.componentRemoved(session, component);
+        }
+        RealmComponentCache.invalidate(realm.getId());
+        ClusterInvalidation.realmRemoved(session, realm.getId());
+    }
+
+    /**
+     * Rebuilds the state of a component whose configuration changed, here or on another
+     * node. It is rebuilt right away rather than on next use, so a caller still holding
+     * the previous model cannot build it from that.
+     */
+    static void componentUpdated(ComponentModel model) {
+        DbUtil.drivers().refresh(model);
+        // Per-component state holds the model it was built from, so any config change starts it afresh
+        if (UserWriteBehindQueue.isEnabled(model)) {
+            UserWriteBehindQueue.queues().replace(model);
+        } else {
+            UserWriteBehindQueue.queues().remove(model.getId());
+        }
+        UserCache.caches().replace(model);
+        NegativeLookupCache.caches().replace(model);
+        PasswordVerificationEngine.engines().replace(model);
+        KeysetCursorCache.caches().remove(model.getId());
+        UserCountCache.caches().replace(model);
+        LookupCoalescer.coalescers().remove(model.getId());
+        Neo4jGuard.guards().replace(model);
+        ShardRouter.routers().replace(model);
+    }
+
+    /**
+     * Closes the state and the driver of a component removed here or on another node.
+     */
+    static void componentRemoved(String componentId) {
+        // Stop the write-behind writer before its driver goes away
+        UserWriteBehindQueue.queues().remove(componentId);
+        UserCache.caches().remove(componentId);
+        NegativeLookupCache.caches().remove(componentId);
+        PasswordVerificationEngine.engines().remove(componentId);
+        KeysetCursorCache.caches().remove(componentId);
+        UserCountCache.caches().remove(componentId);
+        LookupCoalescer.coalescers().remove(componentId);
+        Neo4jGuard.guards().remove(componentId);
+        ShardRouter.routers().remove(componentId);
+        DbUtil.drivers().remove(componentId);
+        ProviderMetrics.unbindComponent(componentId);
     }
 }
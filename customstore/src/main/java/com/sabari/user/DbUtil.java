@@ -1,19 +1,129 @@
 package com.sabari.user;
 
 
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.driver.AccessMode;
 import org.neo4j.driver.GraphDatabase;
 import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
 import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Config;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.TransactionConfig;
 import org.keycloak.component.ComponentModel;
 import static com.sabari.user.CustomUserStorageProviderConstants.*;
 
 public class DbUtil {
+    // One pooled driver per provider component; lifecycle is managed by CustomUserStorageProviderFactory
+    private static final ComponentRegistry<Driver> DRIVERS = new ComponentRegistry<>("neo4j driver", DbUtil::createSharedDriver, DbUtil::driverConfigHash);
+
+    /**
+     * Opens a session for writes on the configured database; on a cluster its transactions
+     * are routed to the leader. With sharding, user data is reached through
+     * {@link #getUserSession} and {@link #getShardSession} instead.
+     */
     public static Session getSession(ComponentModel config) {
+        return openSession(config, ShardRouter.databases(config).get(0), AccessMode.WRITE);
+    }
+
+    /**
+     * Opens a session for lookups on the configured database; with the routing
+     * ({@code neo4j}) scheme its transactions are spread over followers and read replicas.
+     */
+    public static Session getReadSession(ComponentModel config) {
+        return openSession(config, ShardRouter.databases(config).get(0), AccessMode.READ);
+    }
+
+    /**
+     * Opens a session for writes on the database owning the given username, where new
+     * users are created. Existing users are reached through {@link ShardRouter#findUser}.
+     */
+    static Session getUserSession(ComponentModel config, String userName) {
+        return openSession(config, ShardRouter.forComponent(config).databaseFor(userName), AccessMode.WRITE);
+    }
+
+    /**
+     * Opens a session for writes on one of the databases of {@link ShardRouter#databases()}.
+     */
+    static Session getShardSession(ComponentModel config, String database) {
+        return openSession(config, database, AccessMode.WRITE);
+    }
+
+    /**
+     * Opens a session for lookups on one of the databases of {@link ShardRouter#databases()}.
+     */
+    static Session getShardReadSession(ComponentModel config, String database) {
+        return openSession(config, database, AccessMode.READ);
+    }
+
+    // Every session of a component shares the driver's bookmark manager, so a read issued
+    // after a write (e.g. the event listener creating a user) observes that write. Naming
+    // the database also spares the driver a round-trip to resolve the home database.
+    private static Session openSession(ComponentModel config, String database, AccessMode accessMode) {
+        Driver driver = DRIVERS.get(config);
+        SessionConfig.Builder builder = SessionConfig.builder()
+            .withDefaultAccessMode(accessMode)
+            .withFetchSize(config.get(CONFIG_KEY_FETCH_SIZE, DEFAULT_FETCH_SIZE))
+            .withBookmarkManager(driver.executableQueryBookmarkManager());
+        if (database != null) {
+            builder.withDatabase(database);
+        }
+        return driver.session(builder.build());
+    }
+
+    /**
+     * Transaction settings of request-path queries: the server aborts a transaction that
+     * runs past the configured query timeout.
+     */
+    static TransactionConfig transactionConfig(ComponentModel config) {
+        long queryTimeout = config.get(CONFIG_KEY_QUERY_TIMEOUT, DEFAULT_QUERY_TIMEOUT_MS);
+        return queryTimeout > 0 ? TransactionConfig.builder().withTimeout(Duration.ofMillis(queryTimeout)).build() : TransactionConfig.empty();
+    }
+
+    static ComponentRegistry<Driver> drivers() {
+        return DRIVERS;
+    }
+
+    /**
+     * Creates a new, unshared driver for the given configuration. Callers own the
+     * returned driver and must close it; regular lookups go through {@link #getSession}.
+     */
+    public static Driver createDriver(ComponentModel config) {
         String driverClass = config.get(CONFIG_KEY_NEO4J_DRIVER);
         String endpoint = config.get(CONFIG_KEY_NEO4J_CONNECTION_URL);
-        String user = config.get(CONFIG_KEY_DB_USERNAME);    
+        String user = config.get(CONFIG_KEY_DB_USERNAME);
         String password = config.get(CONFIG_KEY_DB_PASSWORD);
-        var driver = GraphDatabase.driver(driverClass + "://" + endpoint, AuthTokens.basic(user, password));
-        return driver.session();
+        Config.ConfigBuilder builder = Config.builder()
+            .withMaxConnectionPoolSize(config.get(CONFIG_KEY_MAX_CONNECTION_POOL_SIZE, DEFAULT_MAX_CONNECTION_POOL_SIZE))
+            .withConnectionAcquisitionTimeout(config.get(CONFIG_KEY_CONNECTION_ACQUISITION_TIMEOUT, DEFAULT_CONNECTION_ACQUISITION_TIMEOUT_MS), TimeUnit.MILLISECONDS)
+            .withMaxConnectionLifetime(config.get(CONFIG_KEY_MAX_CONNECTION_LIFETIME, DEFAULT_MAX_CONNECTION_LIFETIME_MS), TimeUnit.MILLISECONDS)
+            .withDriverMetrics();
+        long queryTimeout = config.get(CONFIG_KEY_QUERY_TIMEOUT, DEFAULT_QUERY_TIMEOUT_MS);
+        if (queryTimeout > 0) {
+            // Retries of transient errors stop at the same deadline as a single transaction
+            builder.withMaxTransactionRetryTime(queryTimeout, TimeUnit.MILLISECONDS);
+        }
+        return GraphDatabase.driver(driverClass + "://" + endpoint, AuthTokens.basic(user, password), builder.build());
+    }
+
+    private static Driver createSharedDriver(ComponentModel config) {
+        Driver driver = createDriver(config);
+        ProviderMetrics.bindComponent(config.getId());
+        return driver;
+    }
+
+    private static int driverConfigHash(ComponentModel config) {
+        return Objects.hash(
+            config.get(CONFIG_KEY_NEO4J_DRIVER),
+            config.get(CONFIG_KEY_NEO4J_CONNECTION_URL),
+            config.get(CONFIG_KEY_DB_USERNAME),
+            config.get(CONFIG_KEY_DB_PASSWORD),
+            config.get(CONFIG_KEY_MAX_CONNECTION_POOL_SIZE),
+            config.get(CONFIG_KEY_CONNECTION_ACQUISITION_TIMEOUT),
+            config.get(CONFIG_KEY_MAX_CONNECTION_LIFETIME),
+            config.get(CONFIG_KEY_QUERY_TIMEOUT));
     }
 }
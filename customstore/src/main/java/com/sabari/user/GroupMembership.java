@@ -0,0 +1,138 @@
+package com.sabari.user;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+import static org.neo4j.driver.Values.parameters;
+
+/**
+ * Group membership stored in Neo4j as {@code (:User)-[:MEMBER_OF]->(:Group {name})}. A
+ * group's {@code name} is its Keycloak group path, with or without the leading slash:
+ * {@code admins} and {@code /admins} both stand for the top-level group {@code admins},
+ * {@code staff/admins} and {@code /staff/admins} for one of its subgroups. Both directions
+ * accept both forms. Groups may themselves be members of other groups; up to the
+ * configured nesting depth, members of such a group count as members of the enclosing
+ * one. Both directions start from an indexed node and follow
+ * relationships, so their cost depends on the size of the group, not of the user base.
+ */
+final class GroupMembership {
+    private static final Logger log = LoggerFactory.getLogger(GroupMembership.class);
+    private static final String RETURN_USER = " RETURN u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate ORDER BY u.userName";
+
+    private GroupMembership() {
+    }
+
+    /**
+     * The Keycloak group path of a Keycloak group, which identifies it in Neo4j.
+     */
+    static String nameOf(GroupModel group) {
+        return KeycloakModelUtils.buildGroupPath(group);
+    }
+
+    static Query membersQuery(ComponentModel model, GroupModel group, Integer firstResult, Integer maxResults, String afterKey) {
+        int depth = depth(model);
+        // A user can reach the group through several nested groups, or through both name forms
+        StringBuilder cypher = new StringBuilder("MATCH (g:Group) WHERE g.name IN $").append(DB_KEY_GROUP_NAMES)
+            .append(" MATCH (g)<-[:MEMBER_OF")
+            .append(depth > 0 ? "*1.." + (depth + 1) : EMPTY_STRING)
+            .append("]-(u:User) WITH DISTINCT u");
+        Map<String, Object> parameters = new HashMap<>();
+        String path = nameOf(group);
+        parameters.put(DB_KEY_GROUP_NAMES, List.of(path, path.substring(1)));
+        if (afterKey != null) {
+            cypher.append(" WHERE u.userName > $").append(RECORD_AFTER_KEY);
+            parameters.put(RECORD_AFTER_KEY, afterKey);
+        }
+        cypher.append(RETURN_USER);
+        if (afterKey == null) {
+            cypher.append(" SKIP $").append(RECORD_SKIP_KEY);
+            parameters.put(RECORD_SKIP_KEY, firstResult == null || firstResult < 0 ? 0 : firstResult);
+        }
+        if (maxResults != null && maxResults >= 0) {
+            cypher.append(" LIMIT $").append(RECORD_LIMIT_KEY);
+            parameters.put(RECORD_LIMIT_KEY, maxResults);
+        }
+        return new Query(cypher.toString(), parameters);
+    }
+
+    /**
+     * The Keycloak groups a Neo4j user belongs to. Neo4j groups without a Keycloak
+     * counterpart in the realm are left out. Group names come from the user's record when
+     * it has them; otherwise they are read from Neo4j and cached with the user.
+     */
+    static Set<GroupModel> groupsOf(ComponentModel model, RealmModel realm, UserRecord user) {
+        String userName = user.getUserName();
+        List<String> names = user.getGroupNames();
+        if (names == null) {
+            UserCache cache = UserCache.forComponent(model);
+            long stamp = cache.stampForUsername(userName);
+            try {
+                names = readGroupNames(model, userName);
+            } catch (RuntimeException ex) {
+                names = staleGroupNames(model, cache.getStaleByUsername(userName), ex);
+            }
+            cache.putGroupNames(userName, names, stamp);
+        }
+        Set<GroupModel> groups = new LinkedHashSet<>();
+        for (String name : names) {
+            if (name == null || name.isBlank()) {
+                continue;
+            }
+            GroupModel group = KeycloakModelUtils.findGroupByPath(realm, name.startsWith("/") ? name : "/" + name);
+            if (group != null) {
+                groups.add(group);
+            } else {
+                log.debug("Neo4j group {} of user {} has no Keycloak group in realm {}", name, userName, realm.getName());
+            }
+        }
+        return groups;
+    }
+
+    private static List<String> readGroupNames(ComponentModel model, String userName) {
+        int depth = depth(model);
+        // No row when the user is not in the database, so a miss can be told from no groups
+        String cypher = "MATCH (u:User {userName: $" + DB_KEY_USER_NAME + "}) OPTIONAL MATCH (u)-[:MEMBER_OF"
+            + (depth > 0 ? "*1.." + (depth + 1) : EMPTY_STRING)
+            + "]->(g:Group) RETURN collect(DISTINCT g.name) as name";
+        List<String> names = Neo4jGuard.forComponent(model).call(model, "getGroups", () -> ShardRouter.findUser(model, userName, database -> {
+            try (Session s = DbUtil.getShardReadSession(model, database)) {
+                return s.executeRead(tx -> {
+                    List<Record> rows = tx.run(new Query(cypher, parameters(DB_KEY_USER_NAME, userName))).list();
+                    return rows.isEmpty() ? null : rows.get(0).get(DB_KEY_GROUP_NAME).asList(value -> value.asString(null));
+                }, DbUtil.transactionConfig(model));
+            } catch (Exception ex) {
+                log.warn("Database error: unable to get groups of user {}; ex={}", userName, ex.getMessage());
+                throw new RuntimeException("Database error: unable to get groups of user", ex);
+            }
+        }));
+        return names == null ? List.of() : names;
+    }
+
+    // Role checks of a user served from the cache during an outage need its groups too
+    private static List<String> staleGroupNames(ComponentModel model, UserRecord stale, RuntimeException ex) {
+        if (stale == null || stale.getGroupNames() == null || !model.get(CONFIG_KEY_SERVE_STALE_ON_FAILURE, true)) {
+            throw ex;
+        }
+        log.warn("Serving cached groups of user {} while neo4j is unavailable; ex={}", stale.getUserName(), ex.getMessage());
+        ProviderMetrics.staleRead(model, "getGroups");
+        return stale.getGroupNames();
+    }
+
+    private static int depth(ComponentModel model) {
+        return Math.max(0, model.get(CONFIG_KEY_GROUP_NESTING_DEPTH, DEFAULT_GROUP_NESTING_DEPTH));
+    }
+}
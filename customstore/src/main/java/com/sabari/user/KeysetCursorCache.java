@@ -0,0 +1,79 @@
+package com.sabari.user;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.component.ComponentModel;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Remembers, per listing query, the last {@code userName} returned before a Keycloak
+ * {@code firstResult} offset. A page whose offset is known continues from that key on the
+ * {@code :User(userName)} index instead of skipping over every earlier row.
+ */
+class KeysetCursorCache implements AutoCloseable {
+    private static final ComponentRegistry<KeysetCursorCache> CACHES = new ComponentRegistry<>("keyset cursor cache", KeysetCursorCache::new, model -> 0);
+    private static final int MAX_CURSORS = 1000;
+    // Rows inserted after a cursor was taken make offsets drift, so cursors are short-lived
+    private static final long CURSOR_TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final LinkedHashMap<String, Cursor> cursors = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest) {
+            return size() > MAX_CURSORS;
+        }
+    };
+
+    private KeysetCursorCache(ComponentModel model) {
+    }
+
+    static KeysetCursorCache forComponent(ComponentModel model) {
+        return CACHES.get(model);
+    }
+
+    static ComponentRegistry<KeysetCursorCache> caches() {
+        return CACHES;
+    }
+
+    static boolean isEnabled(ComponentModel model) {
+        return PAGINATION_MODE_KEYSET.equals(model.get(CONFIG_KEY_PAGINATION_MODE, DEFAULT_PAGINATION_MODE));
+    }
+
+    /**
+     * Returns the key after which the page starting at {@code firstResult} begins, or
+     * {@code null} when no earlier page of this query has been read.
+     */
+    synchronized String get(String query, int firstResult) {
+        String key = query + '\u0000' + firstResult;
+        Cursor cursor = cursors.get(key);
+        if (cursor == null) {
+            return null;
+        }
+        if (cursor.expiresAt - System.nanoTime() < 0) {
+            cursors.remove(key);
+            return null;
+        }
+        return cursor.lastKey;
+    }
+
+    synchronized void put(String query, int firstResult, String lastKey) {
+        cursors.put(query + '\u0000' + firstResult, new Cursor(lastKey, System.nanoTime() + CURSOR_TTL_NANOS));
+    }
+
+    @Override
+    public synchronized void close() {
+        cursors.clear();
+    }
+
+    private static final class Cursor {
+        private final String lastKey;
+        private final long expiresAt;
+
+        private Cursor(String lastKey, long expiresAt) {
+            this.lastKey = lastKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.UserStoragePrivateUtil;
+
+/**
+ * Finds which of a batch of Neo4j usernames already exist in Keycloak's local user storage,
+ * with one query per batch instead of one per user. Keycloak stores usernames in lower case,
+ * so the returned names are lower case too.
+ */
+final class LocalUserLookup {
+    private static final String QUERY_LOCAL_USERNAMES = "select u.username from UserEntity u where u.realmId = :realmId and u.username in :usernames";
+
+    private LocalUserLookup() {
+    }
+
+    static Set<String> findExisting(KeycloakSession session, RealmModel realm, Collection<String> usernames) {
+        if (usernames.isEmpty()) {
+            return Set.of();
+        }
+        List<String> normalized = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            normalized.add(username.toLowerCase());
+        }
+        JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+        if (jpa == null) {
+            // Non-JPA user storage: fall back to one lookup per user
+            Set<String> existing = new HashSet<>();
+            for (String username : normalized) {
+                if (UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username) != null) {
+                    existing.add(username);
+                }
+            }
+            return existing;
+        }
+        return new HashSet<>(jpa.getEntityManager()
+            .createQuery(QUERY_LOCAL_USERNAMES, String.class)
+            .setParameter("realmId", realm.getId())
+            .setParameter("usernames", normalized)
+            .getResultList());
+    }
+}
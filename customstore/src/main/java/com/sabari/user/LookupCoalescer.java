@@ -0,0 +1,85 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.keycloak.component.ComponentModel;
+import org.neo4j.driver.Record;
+
+/**
+ * Lets concurrent lookups of the same user share one Neo4j query. The first caller for a
+ * key runs the query; callers arriving while it is in flight wait for its record instead
+ * of opening sessions of their own. Nothing is kept once the query has finished, so this
+ * never serves stale data; caching is left to {@link UserCache}. In-flight queries are
+ * tracked in independent stripes of non-blocking maps, so unrelated lookups never contend.
+ */
+class LookupCoalescer implements AutoCloseable {
+    private static final ComponentRegistry<LookupCoalescer> COALESCERS = new ComponentRegistry<>("lookup coalescer", LookupCoalescer::new, model -> 0);
+
+    private final List<ConcurrentMap<String, CompletableFuture<Record>>> stripes;
+    private final int mask;
+
+    private LookupCoalescer(ComponentModel model) {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        this.stripes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            stripes.add(new ConcurrentHashMap<>());
+        }
+        this.mask = count - 1;
+    }
+
+    static LookupCoalescer forComponent(ComponentModel model) {
+        return COALESCERS.get(model);
+    }
+
+    static ComponentRegistry<LookupCoalescer> coalescers() {
+        return COALESCERS;
+    }
+
+    /**
+     * Returns the record of {@code key}, running {@code query} only if no lookup of the same
+     * key is already in flight. {@code joined}, when given, runs if the caller waits for
+     * another caller's query instead.
+     */
+    Record load(String key, Supplier<Record> query, Runnable joined) {
+        ConcurrentMap<String, CompletableFuture<Record>> stripe = stripeFor(key);
+        CompletableFuture<Record> pending = new CompletableFuture<>();
+        CompletableFuture<Record> inFlight = stripe.putIfAbsent(key, pending);
+        if (inFlight != null) {
+            if (joined != null) {
+                joined.run();
+            }
+            try {
+                return inFlight.join();
+            } catch (CompletionException ex) {
+                // Each waiter gets its own exception, with its own stack trace
+                throw new RuntimeException(ex.getCause().getMessage(), ex.getCause());
+            }
+        }
+        try {
+            Record record = query.get();
+            pending.complete(record);
+            return record;
+        } catch (RuntimeException ex) {
+            pending.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            stripe.remove(key, pending);
+        }
+    }
+
+    private ConcurrentMap<String, CompletableFuture<Record>> stripeFor(String key) {
+        int hash = key.hashCode();
+        return stripes.get((hash ^ (hash >>> 16)) & mask);
+    }
+
+    @Override
+    public void close() {
+        // In-flight lookups finish on their own; their waiters still get the result
+    }
+}
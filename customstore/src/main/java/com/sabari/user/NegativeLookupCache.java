@@ -0,0 +1,253 @@
+package com.sabari.user;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.component.ComponentModel;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Remembers usernames and emails that Neo4j recently reported as unknown, so repeated
+ * lookups for local users, typos or credential stuffing are answered in memory.
+ * Optionally keeps a Bloom filter of every known username and email, reloaded from
+ * Neo4j in the background; a value absent from the filter is treated as unknown.
+ * Remembered values are kept in segmented LRU maps, so a full cache evicts its least
+ * recently used value in constant time instead of turning every new miss away.
+ */
+class NegativeLookupCache implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(NegativeLookupCache.class);
+    private static final ComponentRegistry<NegativeLookupCache> CACHES = new ComponentRegistry<>("negative lookup cache", NegativeLookupCache::new, NegativeLookupCache::configHash);
+    private static final String USERNAME_PREFIX = "u:";
+    private static final String EMAIL_PREFIX = "e:";
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    private static final int SEGMENTS = 16;
+
+    private final ComponentModel model;
+    private final long ttlNanos;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final ScheduledExecutorService bloomRefresher;
+    private volatile BloomFilter knownUsers;
+    private volatile BloomFilter loadingUsers;
+
+    private NegativeLookupCache(ComponentModel model) {
+        this.model = model;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(model.get(CONFIG_KEY_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL_SECONDS));
+        int segmentSize = Math.max(1, model.get(CONFIG_KEY_NEGATIVE_CACHE_MAX_SIZE, DEFAULT_NEGATIVE_CACHE_MAX_SIZE) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+        if (model.get(CONFIG_KEY_BLOOM_FILTER_ENABLED, false)) {
+            long refreshSeconds = model.get(CONFIG_KEY_BLOOM_FILTER_REFRESH_INTERVAL, DEFAULT_BLOOM_FILTER_REFRESH_INTERVAL_SECONDS);
+            this.bloomRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "neo4j-bloom-refresh-" + model.getId());
+                t.setDaemon(true);
+                return t;
+            });
+            this.bloomRefresher.scheduleWithFixedDelay(this::reloadKnownUsers, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            this.bloomRefresher = null;
+        }
+    }
+
+    static NegativeLookupCache forComponent(ComponentModel model) {
+        return CACHES.get(model);
+    }
+
+    static ComponentRegistry<NegativeLookupCache> caches() {
+        return CACHES;
+    }
+
+    boolean isMissingUsername(String username) {
+        return username != null && isMissing(USERNAME_PREFIX + username);
+    }
+
+    boolean isMissingEmail(String email) {
+        return email != null && isMissing(EMAIL_PREFIX + email);
+    }
+
+    void markMissingUsername(String username) {
+        if (username != null) {
+            markMissing(USERNAME_PREFIX + username);
+        }
+    }
+
+    void markMissingEmail(String email) {
+        if (email != null) {
+            markMissing(EMAIL_PREFIX + email);
+        }
+    }
+
+    /**
+     * Forgets any negative answer for a user that now exists in Neo4j.
+     */
+    void clear(String username, String email) {
+        if (username != null) {
+            forget(USERNAME_PREFIX + username);
+        }
+        if (email != null) {
+            forget(EMAIL_PREFIX + email);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (bloomRefresher != null) {
+            bloomRefresher.shutdownNow();
+        }
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    private boolean isMissing(String key) {
+        boolean missingKey = isKnownMissing(key);
+        if (missingKey) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return missingKey;
+    }
+
+    private boolean isKnownMissing(String key) {
+        if (ttlNanos > 0 && segmentFor(key).contains(key, System.nanoTime())) {
+            return true;
+        }
+        BloomFilter filter = knownUsers;
+        return filter != null && !filter.mightContain(key);
+    }
+
+    private void markMissing(String key) {
+        if (ttlNanos <= 0) {
+            return;
+        }
+        segmentFor(key).put(key, System.nanoTime() + ttlNanos);
+    }
+
+    private void forget(String key) {
+        segmentFor(key).remove(key);
+        // Add to the live filter and to one being loaded, so a concurrent reload cannot lose the user
+        BloomFilter filter = knownUsers;
+        if (filter != null) {
+            filter.put(key);
+        }
+        BloomFilter loading = loadingUsers;
+        if (loading != null) {
+            loading.put(key);
+        }
+    }
+
+    private void reloadKnownUsers() {
+        long started = System.currentTimeMillis();
+        List<String> databases = ShardRouter.forComponent(model).databases();
+        try {
+            long expected = 0;
+            for (String database : databases) {
+                try (Session s = DbUtil.getShardReadSession(model, database)) {
+                    expected += s.executeRead(tx -> tx.run(new Query(QUERY_GET_USER_COUNT)).single().get(DB_KEY_USER_COUNT).asLong());
+                }
+            }
+            BloomFilter filter = new BloomFilter(expected + expected / 5, BLOOM_FALSE_POSITIVE_RATE);
+            loadingUsers = filter;
+            long loaded = 0;
+            for (String database : databases) {
+                try (Session s = DbUtil.getShardReadSession(model, database)) {
+                    loaded += s.executeRead(tx -> {
+                        var result = tx.run(new Query(QUERY_GET_ALL_USER_KEYS));
+                        long count = 0;
+                        while (result.hasNext()) {
+                            var user = result.next();
+                            var userName = user.get(DB_KEY_USER_NAME);
+                            if (!userName.isNull()) {
+                                filter.put(USERNAME_PREFIX + userName.asString());
+                            }
+                            var email = user.get(DB_KEY_USER_EMAIL);
+                            if (!email.isNull()) {
+                                filter.put(EMAIL_PREFIX + email.asString());
+                            }
+                            count++;
+                        }
+                        return count;
+                    });
+                }
+            }
+            knownUsers = filter;
+            log.info("Loaded {} known users into bloom filter for component {} in {} ms", loaded, model.getId(), System.currentTimeMillis() - started);
+        } catch (Exception ex) {
+            log.warn("Database error: unable to load known users for component {}; ex={}", model.getId(), ex.getMessage());
+        } finally {
+            loadingUsers = null;
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hash(
+            model.get(CONFIG_KEY_NEGATIVE_CACHE_TTL),
+            model.get(CONFIG_KEY_NEGATIVE_CACHE_MAX_SIZE),
+            model.get(CONFIG_KEY_BLOOM_FILTER_ENABLED),
+            model.get(CONFIG_KEY_BLOOM_FILTER_REFRESH_INTERVAL));
+    }
+
+    private static final class Segment {
+        // Expiry time of each remembered value, least recently used first
+        private final LinkedHashMap<String, Long> expiries;
+
+        private Segment(int maxSize) {
+            this.expiries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized boolean contains(String key, long now) {
+            Long expiresAt = expiries.get(key);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (expiresAt - now < 0) {
+                expiries.remove(key);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void put(String key, long expiresAt) {
+            expiries.put(key, expiresAt);
+        }
+
+        synchronized void remove(String key) {
+            expiries.remove(key);
+        }
+
+        synchronized void clear() {
+            expiries.clear();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.sabari.user;
+
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Protects Keycloak's request threads from a slow or failing Neo4j. A bulkhead caps the
+ * calls a component has in flight; a caller that cannot get a slot within the configured
+ * wait is rejected instead of queueing behind a stalled pool. A circuit breaker keeps the
+ * outcome of the last calls and, once the window is full and its failure rate reaches the
+ * threshold, rejects every call for the open duration. After that a few trial calls are
+ * let through: if they succeed the circuit closes, if one fails it opens again. Each call
+ * remembers the period of the circuit it was admitted in, and its outcome only counts if
+ * the circuit is still in that period: a call admitted while closed that ends after the
+ * circuit opened is not taken for a trial.
+ */
+class Neo4jGuard implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(Neo4jGuard.class);
+    private static final ComponentRegistry<Neo4jGuard> GUARDS = new ComponentRegistry<>("neo4j guard", Neo4jGuard::new, Neo4jGuard::configHash);
+    private static final int HALF_OPEN_TRIAL_CALLS = 3;
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String componentId;
+    private final int maxConcurrentCalls;
+    private final Semaphore slots;
+    private final long maxWaitMs;
+    private final boolean breakerEnabled;
+    private final int failureRateThreshold;
+    private final long openNanos;
+    // Outcome ring of the last calls while closed; true marks a failure
+    private final boolean[] window;
+    private int windowPosition;
+    private int windowCalls;
+    private int windowFailures;
+    private State state = State.CLOSED;
+    // Moves on with every change of state
+    private long period;
+    private long openUntil;
+    private long halfOpenSince;
+    private int trialsStarted;
+    private int trialsSucceeded;
+
+    private Neo4jGuard(ComponentModel model) {
+        this.componentId = model.getId();
+        this.maxConcurrentCalls = Math.max(0, model.get(CONFIG_KEY_BULKHEAD_MAX_CONCURRENT_CALLS, DEFAULT_BULKHEAD_MAX_CONCURRENT_CALLS));
+        this.slots = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls) : null;
+        this.maxWaitMs = Math.max(0, model.get(CONFIG_KEY_BULKHEAD_MAX_WAIT, DEFAULT_BULKHEAD_MAX_WAIT_MS));
+        this.breakerEnabled = model.get(CONFIG_KEY_CIRCUIT_BREAKER_ENABLED, true);
+        this.failureRateThreshold = Math.min(100, Math.max(1, model.get(CONFIG_KEY_CIRCUIT_BREAKER_FAILURE_RATE, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE)));
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, model.get(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_DURATION, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS)));
+        this.window = new boolean[Math.max(1, model.get(CONFIG_KEY_CIRCUIT_BREAKER_WINDOW_SIZE, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE))];
+    }
+
+    static Neo4jGuard forComponent(ComponentModel model) {
+        return GUARDS.get(model);
+    }
+
+    static ComponentRegistry<Neo4jGuard> guards() {
+        return GUARDS;
+    }
+
+    /**
+     * Runs one Neo4j call under the bulkhead and the circuit breaker. Exceptions thrown by
+     * {@code call} count as failures.
+     */
+    <T> T call(ComponentModel model, String method, Supplier<T> call) {
+        Permit permit = acquire(model, method);
+        boolean success = false;
+        try {
+            T result = call.get();
+            success = true;
+            return result;
+        } finally {
+            permit.release(success);
+        }
+    }
+
+    /**
+     * Takes a bulkhead slot for a call whose end is only known later, such as a stream.
+     * Throws if the circuit is open or no slot frees up in time.
+     */
+    Permit acquire(ComponentModel model, String method) {
+        Permit permit = admit();
+        if (permit == null) {
+            ProviderMetrics.rejected(model, method, "circuit_open");
+            throw new RuntimeException("Database error: neo4j calls suspended by the circuit breaker of component " + componentId);
+        }
+        if (slots != null) {
+            boolean acquired;
+            try {
+                acquired = slots.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                cancelTrial(permit);
+                ProviderMetrics.rejected(model, method, "bulkhead_full");
+                throw new RuntimeException("Database error: too many concurrent neo4j calls for component " + componentId);
+            }
+        }
+        return permit;
+    }
+
+    synchronized State getState() {
+        if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    int getActiveCalls() {
+        return slots == null ? 0 : maxConcurrentCalls - slots.availablePermits();
+    }
+
+    // The permit of an admitted call, or null when the circuit rejects it
+    private synchronized Permit admit() {
+        if (!breakerEnabled) {
+            return new Permit(false, period);
+        }
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openUntil < 0) {
+                return null;
+            }
+            halfOpen();
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsStarted >= HALF_OPEN_TRIAL_CALLS) {
+                // A trial whose stream was never closed must not keep the circuit half-open
+                if (System.nanoTime() - halfOpenSince - openNanos < 0) {
+                    return null;
+                }
+                halfOpen();
+            }
+            trialsStarted++;
+            return new Permit(true, period);
+        }
+        return new Permit(false, period);
+    }
+
+    private void halfOpen() {
+        state = State.HALF_OPEN;
+        period++;
+        halfOpenSince = System.nanoTime();
+        trialsStarted = 0;
+        trialsSucceeded = 0;
+        log.info("Neo4j circuit of component {} is half-open; letting {} trial calls through", componentId, HALF_OPEN_TRIAL_CALLS);
+    }
+
+    // A trial rejected by the bulkhead never reached Neo4j
+    private synchronized void cancelTrial(Permit permit) {
+        if (permit.trial && permit.period == period && trialsStarted > 0) {
+            trialsStarted--;
+        }
+    }
+
+    private synchronized void record(Permit permit, boolean success) {
+        if (!breakerEnabled || permit.period != period) {
+            // Admitted before the circuit last changed state
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (!permit.trial) {
+                return;
+            }
+            if (!success) {
+                open("a trial call failed");
+            } else if (++trialsSucceeded >= HALF_OPEN_TRIAL_CALLS) {
+                state = State.CLOSED;
+                period++;
+                resetWindow();
+                log.info("Neo4j circuit of component {} closed", componentId);
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (windowCalls == window.length) {
+            if (window[windowPosition]) {
+                windowFailures--;
+            }
+        } else {
+            windowCalls++;
+        }
+        window[windowPosition] = !success;
+        if (!success) {
+            windowFailures++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+        if (windowCalls == window.length && windowFailures * 100 >= failureRateThreshold * windowCalls) {
+            open(windowFailures + " of the last " + windowCalls + " calls failed");
+        }
+    }
+
+    private void open(String reason) {
+        state = State.OPEN;
+        period++;
+        openUntil = System.nanoTime() + openNanos;
+        resetWindow();
+        log.warn("Neo4j circuit of component {} opened for {} ms: {}", componentId, TimeUnit.NANOSECONDS.toMillis(openNanos), reason);
+    }
+
+    private void resetWindow() {
+        windowPosition = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    @Override
+    public void close() {
+        // Calls still holding a slot release it on the semaphore they came from
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hash(
+            model.get(CONFIG_KEY_BULKHEAD_MAX_CONCURRENT_CALLS),
+            model.get(CONFIG_KEY_BULKHEAD_MAX_WAIT),
+            model.get(CONFIG_KEY_CIRCUIT_BREAKER_ENABLED),
+            model.get(CONFIG_KEY_CIRCUIT_BREAKER_FAILURE_RATE),
+            model.get(CONFIG_KEY_CIRCUIT_BREAKER_WINDOW_SIZE),
+            model.get(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_DURATION));
+    }
+
+    /**
+     * One admitted call, as a trial of a half-open circuit or not, and the period of the
+     * circuit it was admitted in. {@link #release(boolean)} frees its slot and records its
+     * outcome once; later calls are ignored.
+     */
+    final class Permit {
+        private final boolean trial;
+        private final long period;
+        private boolean released;
+
+        private Permit(boolean trial, long period) {
+            this.trial = trial;
+            this.period = period;
+        }
+
+        synchronized void release(boolean success) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (slots != null) {
+                slots.release();
+            }
+            record(this, success);
+        }
+    }
+}
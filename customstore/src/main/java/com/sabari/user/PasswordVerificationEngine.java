@@ -0,0 +1,176 @@
+package com.sabari.user;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.keycloak.component.ComponentModel;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+import static org.neo4j.driver.Values.parameters;
+
+/**
+ * Checks password challenges against the hash stored on a user's {@code Password} node.
+ * The algorithm is picked by the {@code {id}} prefix of the hash; a hash without a prefix is
+ * treated as legacy plain text. Hashing runs on a bounded, per-component executor so a
+ * login storm queues (and eventually gets rejected) instead of tying up Keycloak worker
+ * threads. Optionally, hashes weaker than the configured algorithm are replaced after a
+ * successful login.
+ */
+class PasswordVerificationEngine implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PasswordVerificationEngine.class);
+    private static final ComponentRegistry<PasswordVerificationEngine> ENGINES = new ComponentRegistry<>("password verifier", PasswordVerificationEngine::new, PasswordVerificationEngine::configHash);
+    private static final int BCRYPT_COST = 10;
+    private static final int ARGON2_MEMORY_KB = 19456;
+    private static final int ARGON2_ITERATIONS = 2;
+    private static final int ARGON2_PARALLELISM = 1;
+
+    private final ComponentModel model;
+    private final Map<String, PasswordVerifier> verifiers = new HashMap<>();
+    private final PasswordVerifier target;
+    private final boolean rehashOnLogin;
+    private final long timeoutMs;
+    private final ThreadPoolExecutor executor;
+
+    private PasswordVerificationEngine(ComponentModel model) {
+        this.model = model;
+        int iterations = model.get(CONFIG_KEY_PASSWORD_HASH_ITERATIONS, DEFAULT_PASSWORD_HASH_ITERATIONS);
+        register(new PlainTextPasswordVerifier());
+        register(new Pbkdf2PasswordVerifier(PASSWORD_HASH_PBKDF2_SHA256, "PBKDF2WithHmacSHA256", iterations, 256));
+        register(new Pbkdf2PasswordVerifier(PASSWORD_HASH_PBKDF2_SHA512, "PBKDF2WithHmacSHA512", iterations, 512));
+        register(new BCryptPasswordVerifier(BCRYPT_COST));
+        register(new Argon2PasswordVerifier(ARGON2_MEMORY_KB, ARGON2_ITERATIONS, ARGON2_PARALLELISM));
+        this.target = verifiers.getOrDefault(model.get(CONFIG_KEY_PASSWORD_HASH_ALGORITHM, DEFAULT_PASSWORD_HASH_ALGORITHM), verifiers.get(DEFAULT_PASSWORD_HASH_ALGORITHM));
+        this.rehashOnLogin = model.get(CONFIG_KEY_PASSWORD_REHASH_ON_LOGIN, false);
+        this.timeoutMs = model.get(CONFIG_KEY_PASSWORD_VERIFIER_TIMEOUT, DEFAULT_PASSWORD_VERIFIER_TIMEOUT_MS);
+
+        int threads = model.get(CONFIG_KEY_PASSWORD_VERIFIER_THREADS, 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(model.get(CONFIG_KEY_PASSWORD_VERIFIER_QUEUE_SIZE, DEFAULT_PASSWORD_VERIFIER_QUEUE_SIZE)),
+            r -> {
+                Thread t = new Thread(r, "neo4j-password-verifier-" + model.getId());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    static PasswordVerificationEngine forComponent(ComponentModel model) {
+        return ENGINES.get(model);
+    }
+
+    static ComponentRegistry<PasswordVerificationEngine> engines() {
+        return ENGINES;
+    }
+
+    boolean verify(String username, String password, String storedHash) {
+        if (password == null || storedHash == null) {
+            return false;
+        }
+        Future<Boolean> verification;
+        try {
+            verification = executor.submit(() -> verifyAndUpgrade(username, password, storedHash));
+        } catch (RejectedExecutionException ex) {
+            log.warn("Password verification rejected for user {}: verifier queue is full", username);
+            throw new RuntimeException("Password verification rejected: verifier queue is full", ex);
+        }
+        try {
+            return verification.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            verification.cancel(true);
+            log.warn("Password verification timed out for user {} after {} ms", username, timeoutMs);
+            throw new RuntimeException("Password verification timed out", ex);
+        } catch (InterruptedException ex) {
+            verification.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Password verification interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Password verification failed", ex.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void register(PasswordVerifier verifier) {
+        verifiers.put(verifier.getId(), verifier);
+    }
+
+    private boolean verifyAndUpgrade(String username, String password, String storedHash) {
+        String id = PlainTextPasswordVerifier.ID;
+        String encoded = storedHash;
+        if (storedHash.startsWith("{") && storedHash.indexOf('}') > 0) {
+            id = storedHash.substring(1, storedHash.indexOf('}'));
+            encoded = storedHash.substring(storedHash.indexOf('}') + 1);
+        }
+        PasswordVerifier verifier = verifiers.get(id);
+        if (verifier == null) {
+            log.warn("Unsupported password hash algorithm {} for user {}", id, username);
+            return false;
+        }
+        boolean valid;
+        boolean stale;
+        try {
+            valid = verifier.verify(password, encoded);
+            stale = valid && rehashOnLogin && (verifier != target || target.needsRehash(encoded));
+        } catch (RuntimeException | LinkageError ex) {
+            log.warn("Unable to verify {} password hash for user {}; ex={}", id, username, ex.toString());
+            return false;
+        }
+        if (stale) {
+            scheduleRehash(username, password, storedHash);
+        }
+        return valid;
+    }
+
+    // Runs after the login has been answered; a full queue just postpones the upgrade to a later login
+    private void scheduleRehash(String username, String password, String storedHash) {
+        try {
+            executor.execute(() -> {
+                String newHash = "{" + target.getId() + "}" + target.encode(password);
+                try {
+                    ShardRouter.findUser(model, username, database -> {
+                        try (Session s = DbUtil.getShardSession(model, database)) {
+                            int updated = s.executeWrite(tx -> tx.run(new Query(QUERY_UPDATE_PASSWORD_HASH, parameters(
+                                DB_KEY_USER_NAME, username,
+                                DB_KEY_OLD_PASSWORD_HASH, storedHash,
+                                DB_KEY_PASSWORD_HASH, newHash))).consume().counters().propertiesSet());
+                            return updated > 0 ? updated : null;
+                        }
+                    });
+                    log.info("Password hash of user {} upgraded to {}", username, target.getId());
+                } catch (Exception ex) {
+                    log.warn("Database error: unable to upgrade password hash of user {}; ex={}", username, ex.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            log.debug("Skipping password rehash of user {}: verifier queue is full", username);
+        }
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hash(
+            model.get(CONFIG_KEY_PASSWORD_HASH_ALGORITHM),
+            model.get(CONFIG_KEY_PASSWORD_HASH_ITERATIONS),
+            model.get(CONFIG_KEY_PASSWORD_REHASH_ON_LOGIN),
+            model.get(CONFIG_KEY_PASSWORD_VERIFIER_THREADS),
+            model.get(CONFIG_KEY_PASSWORD_VERIFIER_QUEUE_SIZE),
+            model.get(CONFIG_KEY_PASSWORD_VERIFIER_TIMEOUT));
+    }
+}
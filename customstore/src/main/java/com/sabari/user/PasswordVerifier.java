@@ -0,0 +1,20 @@
+package com.sabari.user;
+
+/**
+ * Verifies and produces one password hash format. Hashes on a {@code Password} node are
+ * stored as {@code {id}payload}; the engine strips the prefix before calling a verifier.
+ */
+interface PasswordVerifier {
+
+    String getId();
+
+    boolean verify(String password, String encoded);
+
+    String encode(String password);
+
+    /**
+     * Whether a hash this verifier accepts was produced with weaker parameters than it
+     * would use today.
+     */
+    boolean needsRehash(String encoded);
+}
@@ -0,0 +1,71 @@
+package com.sabari.user;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2 hashes encoded as {@code iterations$base64(salt)$base64(hash)}.
+ */
+class Pbkdf2PasswordVerifier implements PasswordVerifier {
+    private static final int SALT_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String id;
+    private final String algorithm;
+    private final int iterations;
+    private final int keyLengthBits;
+
+    Pbkdf2PasswordVerifier(String id, String algorithm, int iterations, int keyLengthBits) {
+        this.id = id;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.keyLengthBits = keyLengthBits;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean verify(String password, String encoded) {
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        byte[] salt = Base64.getDecoder().decode(parts[1]);
+        byte[] expected = Base64.getDecoder().decode(parts[2]);
+        byte[] actual = derive(password, salt, Integer.parseInt(parts[0]), expected.length * 8);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    @Override
+    public String encode(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations, keyLengthBits);
+        return iterations + "$" + Base64.getEncoder().encodeToString(salt) + "$" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    @Override
+    public boolean needsRehash(String encoded) {
+        int separator = encoded.indexOf('$');
+        return separator < 0 || Integer.parseInt(encoded.substring(0, separator)) < iterations;
+    }
+
+    private byte[] derive(String password, byte[] salt, int iterations, int keyLengthBits) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLengthBits);
+        try {
+            return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("PBKDF2 algorithm not available: " + algorithm, ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
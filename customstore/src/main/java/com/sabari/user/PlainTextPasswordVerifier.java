@@ -0,0 +1,32 @@
+package com.sabari.user;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Legacy format: the {@code Password} node holds the password itself. Kept so existing
+ * graphs keep working until their users are rehashed on login.
+ */
+class PlainTextPasswordVerifier implements PasswordVerifier {
+    static final String ID = "plain";
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean verify(String password, String encoded) {
+        return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), encoded.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String encode(String password) {
+        return password;
+    }
+
+    @Override
+    public boolean needsRehash(String encoded) {
+        return true;
+    }
+}
@@ -0,0 +1,240 @@
+package com.sabari.user;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+import org.keycloak.component.ComponentModel;
+import org.neo4j.driver.ConnectionPoolMetrics;
+import org.neo4j.driver.Driver;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.search.Search;
+
+/**
+ * Micrometer meters of the provider, registered with the global registry that Keycloak
+ * exposes on its metrics endpoint. Every meter carries a {@code component} tag. Gauges
+ * look their component state up on each read, so they keep reporting after the driver or
+ * a cache is rebuilt for a new configuration.
+ */
+final class ProviderMetrics {
+    private static final String PREFIX = "keycloak.neo4j.";
+    static final String CALLS = PREFIX + "provider.calls";
+    static final String ERRORS = PREFIX + "provider.errors";
+    static final String POOL_CONNECTIONS = PREFIX + "pool.connections";
+    static final String POOL_ACQUISITION_TIME = PREFIX + "pool.acquisition.time";
+    static final String POOL_ACQUISITION_TIMEOUTS = PREFIX + "pool.acquisition.timeouts";
+    static final String CACHE_HIT_RATIO = PREFIX + "cache.hit.ratio";
+    static final String CACHE_SIZE = PREFIX + "cache.size";
+    static final String SKIPPED_ROWS = PREFIX + "mapping.skipped";
+    static final String COALESCED_LOOKUPS = PREFIX + "lookup.coalesced";
+    static final String REJECTED_CALLS = PREFIX + "guard.rejected";
+    static final String CIRCUIT_STATE = PREFIX + "circuit.state";
+    static final String BULKHEAD_ACTIVE = PREFIX + "bulkhead.active";
+    static final String STALE_READS = PREFIX + "cache.stale.served";
+    private static final String TAG_COMPONENT = "component";
+
+    private ProviderMetrics() {
+    }
+
+    static <T> T time(ComponentModel model, String method, Supplier<T> call) {
+        Call timing = start(model, method);
+        try {
+            return call.get();
+        } catch (RuntimeException ex) {
+            timing.failed(ex);
+            throw ex;
+        } finally {
+            timing.stop();
+        }
+    }
+
+    static void run(ComponentModel model, String method, Runnable call) {
+        time(model, method, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * Starts timing a call that outlives the SPI method, such as a lazily consumed stream.
+     */
+    static Call start(ComponentModel model, String method) {
+        return new Call(componentId(model), method);
+    }
+
+    /**
+     * Counts an error that the provider handles itself instead of propagating.
+     */
+    static void failed(ComponentModel model, String method, Throwable ex) {
+        countError(componentId(model), method, ex);
+    }
+
+    private static void countError(String componentId, String method, Throwable ex) {
+        Metrics.globalRegistry.counter(ERRORS, TAG_COMPONENT, componentId, "method", method, "exception", ex.getClass().getSimpleName()).increment();
+    }
+
+    /**
+     * Counts a Neo4j row that could not be mapped to a user and was left out.
+     */
+    static void skippedRow(ComponentModel model, String reason) {
+        Metrics.globalRegistry.counter(SKIPPED_ROWS, TAG_COMPONENT, componentId(model), "reason", reason).increment();
+    }
+
+    /**
+     * Counts a lookup that was answered by another caller's in-flight query.
+     */
+    static void coalesced(ComponentModel model, String method) {
+        Metrics.globalRegistry.counter(COALESCED_LOOKUPS, TAG_COMPONENT, componentId(model), "method", method).increment();
+    }
+
+    /**
+     * Counts a call refused by the bulkhead ({@code bulkhead_full}) or the circuit breaker
+     * ({@code circuit_open}).
+     */
+    static void rejected(ComponentModel model, String method, String reason) {
+        Metrics.globalRegistry.counter(REJECTED_CALLS, TAG_COMPONENT, componentId(model), "method", method, "reason", reason).increment();
+    }
+
+    /**
+     * Counts a lookup answered from expired cache data because Neo4j could not be asked.
+     */
+    static void staleRead(ComponentModel model, String method) {
+        Metrics.globalRegistry.counter(STALE_READS, TAG_COMPONENT, componentId(model), "method", method).increment();
+    }
+
+    /**
+     * Registers the pool and cache gauges of a component; registering again is a no-op.
+     */
+    static void bindComponent(String componentId) {
+        MeterRegistry registry = Metrics.globalRegistry;
+        poolGauge(registry, componentId, POOL_CONNECTIONS, "in_use", ConnectionPoolMetrics::inUse);
+        poolGauge(registry, componentId, POOL_CONNECTIONS, "idle", ConnectionPoolMetrics::idle);
+        poolGauge(registry, componentId, POOL_CONNECTIONS, "acquiring", ConnectionPoolMetrics::acquiring);
+        Gauge.builder(POOL_ACQUISITION_TIME, () -> acquisitionMillis(componentId))
+            .tag(TAG_COMPONENT, componentId)
+            .baseUnit("milliseconds")
+            .description("Mean time to acquire a pooled Neo4j connection")
+            .register(registry);
+        poolGauge(registry, componentId, POOL_ACQUISITION_TIMEOUTS, null, ConnectionPoolMetrics::timedOutToAcquire);
+        Gauge.builder(CACHE_HIT_RATIO, () -> {
+                UserCache cache = UserCache.caches().peek(componentId);
+                return cache == null ? Double.NaN : ratio(cache.getHitCount(), cache.getMissCount());
+            })
+            .tags(TAG_COMPONENT, componentId, "cache", "user")
+            .register(registry);
+        Gauge.builder(CACHE_HIT_RATIO, () -> {
+                NegativeLookupCache cache = NegativeLookupCache.caches().peek(componentId);
+                return cache == null ? Double.NaN : ratio(cache.getHitCount(), cache.getMissCount());
+            })
+            .tags(TAG_COMPONENT, componentId, "cache", "negative")
+            .register(registry);
+        Gauge.builder(CIRCUIT_STATE, () -> {
+                Neo4jGuard guard = Neo4jGuard.guards().peek(componentId);
+                return guard == null ? Double.NaN : guard.getState().ordinal();
+            })
+            .tag(TAG_COMPONENT, componentId)
+            .description("Neo4j circuit breaker state: 0 closed, 1 half-open, 2 open")
+            .register(registry);
+        Gauge.builder(BULKHEAD_ACTIVE, () -> {
+                Neo4jGuard guard = Neo4jGuard.guards().peek(componentId);
+                return guard == null ? Double.NaN : guard.getActiveCalls();
+            })
+            .tag(TAG_COMPONENT, componentId)
+            .register(registry);
+        Gauge.builder(CACHE_SIZE, () -> {
+                UserCache cache = UserCache.caches().peek(componentId);
+                return cache == null ? Double.NaN : cache.size();
+            })
+            .tags(TAG_COMPONENT, componentId, "cache", "user")
+            .register(registry);
+    }
+
+    static void unbindComponent(String componentId) {
+        MeterRegistry registry = Metrics.globalRegistry;
+        for (Meter meter : Search.in(registry).name(name -> name.startsWith(PREFIX)).tag(TAG_COMPONENT, componentId).meters()) {
+            registry.remove(meter);
+        }
+    }
+
+    private static void poolGauge(MeterRegistry registry, String componentId, String name, String state, ToDoubleFunction<ConnectionPoolMetrics> value) {
+        Gauge.Builder<Supplier<Number>> gauge = Gauge.builder(name, () -> sumPools(componentId, value)).tag(TAG_COMPONENT, componentId);
+        if (state != null) {
+            gauge.tag("state", state);
+        }
+        gauge.register(registry);
+    }
+
+    // A routing driver keeps one pool per cluster member
+    private static double sumPools(String componentId, ToDoubleFunction<ConnectionPoolMetrics> value) {
+        Driver driver = DbUtil.drivers().peek(componentId);
+        if (driver == null) {
+            return Double.NaN;
+        }
+        try {
+            double sum = 0;
+            for (ConnectionPoolMetrics pool : driver.metrics().connectionPoolMetrics()) {
+                sum += value.applyAsDouble(pool);
+            }
+            return sum;
+        } catch (RuntimeException ex) {
+            // Closed concurrently with the scrape
+            return Double.NaN;
+        }
+    }
+
+    private static double acquisitionMillis(String componentId) {
+        double acquired = sumPools(componentId, ConnectionPoolMetrics::acquired);
+        double total = sumPools(componentId, ConnectionPoolMetrics::totalAcquisitionTime);
+        if (Double.isNaN(acquired) || Double.isNaN(total)) {
+            return Double.NaN;
+        }
+        return acquired > 0 ? total / acquired : 0;
+    }
+
+    private static double ratio(long hits, long misses) {
+        long lookups = hits + misses;
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+
+    private static String componentId(ComponentModel model) {
+        return model == null || model.getId() == null ? "none" : model.getId();
+    }
+
+    /**
+     * One timed call. {@link #stop()} records it once; later calls are ignored.
+     */
+    static final class Call {
+        private final String componentId;
+        private final String method;
+        private final long startedAt = System.nanoTime();
+        private volatile String outcome = "success";
+        private boolean stopped;
+
+        private Call(String componentId, String method) {
+            this.componentId = componentId;
+            this.method = method;
+        }
+
+        void failed(Throwable ex) {
+            outcome = "error";
+            countError(componentId, method, ex);
+        }
+
+        synchronized void stop() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            Timer.builder(CALLS)
+                .tags(TAG_COMPONENT, componentId, "method", method, "outcome", outcome)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry)
+                .record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+}
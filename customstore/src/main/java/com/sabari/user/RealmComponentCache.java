@@ -0,0 +1,58 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.UserStorageProvider;
+
+/**
+ * Remembers, per realm, the IDs of the user storage components that are Neo4j providers,
+ * so the event listener does not walk the realm's component list on every admin event.
+ * Only IDs are kept: each event resolves them through the realm, so it always sees the
+ * current configuration. A realm's entry is dropped whenever one of its Neo4j components
+ * is created, updated or removed, on this node or another, and when the realm is removed.
+ */
+final class RealmComponentCache {
+    private static final Map<String, List<String>> COMPONENT_IDS = new ConcurrentHashMap<>();
+
+    private RealmComponentCache() {
+    }
+
+    static List<ComponentModel> neo4jComponents(RealmModel realm) {
+        List<String> ids = COMPONENT_IDS.computeIfAbsent(realm.getId(), id -> neo4jComponentsOf(realm).stream()
+            .map(ComponentModel::getId)
+            .toList());
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        List<ComponentModel> components = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            ComponentModel component = realm.getComponent(id);
+            if (component != null) {
+                components.add(component);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Reads the realm's Neo4j components, bypassing the cache.
+     */
+    static List<ComponentModel> neo4jComponentsOf(RealmModel realm) {
+        return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+            .filter(component -> CustomUserStorageProviderConstants.NEO4J_PROVIDER_ID.equals(component.getProviderId()))
+            .toList();
+    }
+
+    static void invalidate(String realmId) {
+        COMPONENT_IDS.remove(realmId);
+    }
+
+    static void clear() {
+        COMPONENT_IDS.clear();
+    }
+}
@@ -0,0 +1,281 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.keycloak.component.ComponentModel;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Lazily streams the records of a read query. Records are pulled from Neo4j in batches of
+ * the session fetch size as the stream is consumed, so memory is bounded by the fetch
+ * size rather than by the page size. The session and transaction are released when the
+ * stream is exhausted, fails or is closed, whichever happens first.
+ * <p>
+ * Unlike {@code executeRead}, a failure half way through a stream is not retried: records
+ * already handed to the consumer cannot be taken back.
+ * <p>
+ * With sharding the query runs on every shard and the shard streams are merged in the
+ * query's order: by score, for full-text results, then by userName. Each shard is asked for
+ * the first {@code skip + maxResults} records; the page is cut from the merged stream.
+ */
+final class RecordStream {
+
+    private RecordStream() {
+    }
+
+    /**
+     * @param onComplete run once every record has been consumed; not run when the stream is
+     *                   closed early or fails
+     * @param onFailure  run with the database error when reading from Neo4j fails
+     */
+    static Stream<Record> open(ComponentModel model, Query query, Runnable onComplete, Consumer<RuntimeException> onFailure) {
+        ShardRouter router = ShardRouter.forComponent(model);
+        if (!router.isSharded()) {
+            Cursor cursor = new Cursor(model, router.databases().get(0), query, onComplete, onFailure);
+            return StreamSupport.stream(cursor, false).onClose(cursor::release);
+        }
+        Map<String, Object> parameters = new HashMap<>(query.parameters().asMap());
+        int skip = parameters.containsKey(RECORD_SKIP_KEY) ? ((Number) parameters.get(RECORD_SKIP_KEY)).intValue() : 0;
+        int limit = parameters.containsKey(RECORD_LIMIT_KEY) ? ((Number) parameters.get(RECORD_LIMIT_KEY)).intValue() : -1;
+        if (parameters.containsKey(RECORD_SKIP_KEY)) {
+            parameters.put(RECORD_SKIP_KEY, 0);
+        }
+        if (limit >= 0) {
+            parameters.put(RECORD_LIMIT_KEY, skip + limit);
+        }
+        Query shardQuery = query.withParameters(parameters);
+        List<Cursor> shards = new ArrayList<>(router.databases().size());
+        for (String database : router.databases()) {
+            shards.add(new Cursor(model, database, shardQuery, null, null));
+        }
+        MergedCursor cursor = new MergedCursor(shards, skip, limit, onComplete, onFailure);
+        return StreamSupport.stream(cursor, false).onClose(cursor::release);
+    }
+
+    /**
+     * Groups a stream into lists of up to {@code batchSize} elements, pulling from the
+     * source only as batches are consumed. Closing the result closes the source.
+     */
+    static <T> Stream<List<T>> inBatches(Stream<T> source, int batchSize) {
+        Iterator<T> elements = source.iterator();
+        Spliterator<List<T>> batches = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super List<T>> action) {
+                List<T> batch = new ArrayList<>(Math.min(batchSize, 64));
+                while (batch.size() < batchSize && elements.hasNext()) {
+                    batch.add(elements.next());
+                }
+                if (batch.isEmpty()) {
+                    return false;
+                }
+                action.accept(batch);
+                return true;
+            }
+        };
+        return StreamSupport.stream(batches, false).onClose(source::close);
+    }
+
+    // Nothing is opened until the first record is requested, so a stream that is never
+    // consumed never holds a pooled connection
+    private static final class Cursor extends Spliterators.AbstractSpliterator<Record> {
+        private final ComponentModel model;
+        private final String database;
+        private final Query query;
+        private final Runnable onComplete;
+        private final Consumer<RuntimeException> onFailure;
+        private Neo4jGuard.Permit permit;
+        private Session session;
+        private Transaction tx;
+        private Result result;
+        private boolean done;
+
+        private Cursor(ComponentModel model, String database, Query query, Runnable onComplete, Consumer<RuntimeException> onFailure) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.model = model;
+            this.database = database;
+            this.query = query;
+            this.onComplete = onComplete;
+            this.onFailure = onFailure;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Record> action) {
+            if (done) {
+                return false;
+            }
+            Record next;
+            try {
+                if (result == null) {
+                    // The bulkhead slot is held until the stream is released
+                    permit = Neo4jGuard.forComponent(model).acquire(model, "streamUsers");
+                    session = DbUtil.getShardReadSession(model, database);
+                    tx = session.beginTransaction(DbUtil.transactionConfig(model));
+                    result = tx.run(query);
+                }
+                next = result.hasNext() ? result.next() : null;
+            } catch (RuntimeException ex) {
+                release(false);
+                RuntimeException failure = new RuntimeException("Database error: unable to stream users", ex);
+                if (onFailure != null) {
+                    onFailure.accept(failure);
+                }
+                throw failure;
+            }
+            if (next == null) {
+                release();
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+                return false;
+            }
+            try {
+                action.accept(next);
+            } catch (RuntimeException ex) {
+                release();
+                throw ex;
+            }
+            return true;
+        }
+
+        void release() {
+            release(true);
+        }
+
+        private void release(boolean success) {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                if (tx != null) {
+                    tx.close();
+                }
+            } finally {
+                try {
+                    if (session != null) {
+                        session.close();
+                    }
+                } finally {
+                    if (permit != null) {
+                        permit.release(success);
+                    }
+                }
+            }
+        }
+    }
+
+    // Merges shard cursors that are each already in query order
+    private static final class MergedCursor extends Spliterators.AbstractSpliterator<Record> {
+        private static final Comparator<Record> ORDER = Comparator
+            .comparingDouble((Record r) -> r.containsKey(DB_KEY_SCORE) ? -r.get(DB_KEY_SCORE).asDouble() : 0d)
+            .thenComparing(r -> r.get(DB_KEY_USER_NAME).asString(null), Comparator.nullsLast(Comparator.naturalOrder()));
+
+        private final List<Cursor> shards;
+        private final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> ORDER.compare(a.record, b.record));
+        private final Runnable onComplete;
+        private final Consumer<RuntimeException> onFailure;
+        private int toSkip;
+        private int remaining;
+        private boolean started;
+        private boolean done;
+
+        private MergedCursor(List<Cursor> shards, int skip, int limit, Runnable onComplete, Consumer<RuntimeException> onFailure) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.shards = shards;
+            this.toSkip = skip;
+            this.remaining = limit;
+            this.onComplete = onComplete;
+            this.onFailure = onFailure;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Record> action) {
+            if (done) {
+                return false;
+            }
+            Record next;
+            try {
+                if (!started) {
+                    started = true;
+                    for (Cursor shard : shards) {
+                        advance(shard);
+                    }
+                }
+                while (toSkip > 0 && !heads.isEmpty()) {
+                    advance(heads.poll().shard);
+                    toSkip--;
+                }
+                Head head = remaining == 0 ? null : heads.poll();
+                next = head == null ? null : head.record;
+                if (head != null) {
+                    advance(head.shard);
+                }
+            } catch (RuntimeException ex) {
+                release();
+                if (onFailure != null) {
+                    onFailure.accept(ex);
+                }
+                throw ex;
+            }
+            if (next == null) {
+                release();
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+                return false;
+            }
+            if (remaining > 0) {
+                remaining--;
+            }
+            try {
+                action.accept(next);
+            } catch (RuntimeException ex) {
+                release();
+                throw ex;
+            }
+            return true;
+        }
+
+        private void advance(Cursor shard) {
+            shard.tryAdvance(record -> heads.add(new Head(record, shard)));
+        }
+
+        void release() {
+            if (done) {
+                return;
+            }
+            done = true;
+            heads.clear();
+            for (Cursor shard : shards) {
+                shard.release();
+            }
+        }
+    }
+
+    private static final class Head {
+        private final Record record;
+        private final Cursor shard;
+
+        private Head(Record record, Cursor shard) {
+            this.record = record;
+            this.shard = shard;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.keycloak.component.ComponentModel;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+import static org.neo4j.driver.Values.parameters;
+
+/**
+ * Checks that the indexes and constraints the provider's queries rely on exist and are
+ * online, and optionally creates the missing ones. Without them every lookup by
+ * {@code userName} or {@code email} falls back to a label scan.
+ */
+final class SchemaManager {
+    private static final Logger log = LoggerFactory.getLogger(SchemaManager.class);
+
+    private static final String STATE_ONLINE = "ONLINE";
+    private static final String STATE_MISSING = "MISSING";
+
+    private static final List<Requirement> REQUIREMENTS = List.of(
+        // Backed by a range index, so it serves the exact userName lookups and keyset paging
+        new Requirement("user_userName_unique", "UNIQUENESS", "User", List.of(DB_KEY_USER_NAME),
+            "CREATE CONSTRAINT user_userName_unique IF NOT EXISTS FOR (u:User) REQUIRE u.userName IS UNIQUE"),
+        new Requirement("user_email_range", "RANGE", "User", List.of(DB_KEY_USER_EMAIL),
+            "CREATE RANGE INDEX user_email_range IF NOT EXISTS FOR (u:User) ON (u.email)"),
+        // Exact first and last name filters of the admin console
+        new Requirement("user_firstName_range", "RANGE", "User", List.of(DB_KEY_USER_FIRST_NAME),
+            "CREATE RANGE INDEX user_firstName_range IF NOT EXISTS FOR (u:User) ON (u.firstName)"),
+        new Requirement("user_lastName_range", "RANGE", "User", List.of(DB_KEY_USER_LAST_NAME),
+            "CREATE RANGE INDEX user_lastName_range IF NOT EXISTS FOR (u:User) ON (u.lastName)"),
+        // CONTAINS searches can only use a text index
+        new Requirement("user_userName_text", "TEXT", "User", List.of(DB_KEY_USER_NAME),
+            "CREATE TEXT INDEX user_userName_text IF NOT EXISTS FOR (u:User) ON (u.userName)"),
+        new Requirement("user_email_text", "TEXT", "User", List.of(DB_KEY_USER_EMAIL),
+            "CREATE TEXT INDEX user_email_text IF NOT EXISTS FOR (u:User) ON (u.email)"),
+        new Requirement("user_firstName_text", "TEXT", "User", List.of(DB_KEY_USER_FIRST_NAME),
+            "CREATE TEXT INDEX user_firstName_text IF NOT EXISTS FOR (u:User) ON (u.firstName)"),
+        new Requirement("user_lastName_text", "TEXT", "User", List.of(DB_KEY_USER_LAST_NAME),
+            "CREATE TEXT INDEX user_lastName_text IF NOT EXISTS FOR (u:User) ON (u.lastName)"),
+        // Changed-since sync filters on it
+        new Requirement("user_lastModified_range", "RANGE", "User", List.of(DB_KEY_LAST_MODIFIED),
+            "CREATE RANGE INDEX user_lastModified_range IF NOT EXISTS FOR (u:User) ON (u.lastModified)"),
+        // Group membership traversals start from the group node
+        new Requirement("group_name_range", "RANGE", "Group", List.of(DB_KEY_GROUP_NAME),
+            "CREATE RANGE INDEX group_name_range IF NOT EXISTS FOR (g:Group) ON (g.name)"));
+    // Only needed, and only worth its write cost, in full-text search mode
+    private static final Requirement FULLTEXT_REQUIREMENT = new Requirement(FULLTEXT_INDEX_NAME, "FULLTEXT", "User",
+        List.of(DB_KEY_USER_NAME, DB_KEY_USER_EMAIL, DB_KEY_USER_FIRST_NAME, DB_KEY_USER_LAST_NAME),
+        "CREATE FULLTEXT INDEX " + FULLTEXT_INDEX_NAME + " IF NOT EXISTS FOR (u:User) ON EACH [u.userName, u.email, u.firstName, u.lastName]");
+
+    private SchemaManager() {
+    }
+
+    /**
+     * Checks, and in {@code create} mode creates, the required schema in every database
+     * holding users, then logs the state of every requirement. Returns the requirements
+     * that are still not online.
+     */
+    static List<String> ensure(Driver driver, ComponentModel config) {
+        String mode = config.get(CONFIG_KEY_SCHEMA_MANAGEMENT, DEFAULT_SCHEMA_MANAGEMENT);
+        if (SCHEMA_MANAGEMENT_NONE.equals(mode)) {
+            return List.of();
+        }
+        List<Requirement> requirements = new ArrayList<>(REQUIREMENTS);
+        if (SEARCH_MODE_FULLTEXT.equals(config.get(CONFIG_KEY_SEARCH_MODE, DEFAULT_SEARCH_MODE))) {
+            requirements.add(FULLTEXT_REQUIREMENT);
+        }
+        List<String> notOnline = new ArrayList<>();
+        for (String database : ShardRouter.databases(config)) {
+            notOnline.addAll(ensure(driver, config, mode, requirements, database));
+        }
+        return notOnline;
+    }
+
+    private static List<String> ensure(Driver driver, ComponentModel config, String mode, List<Requirement> requirements, String database) {
+        String prefix = database == null ? EMPTY_STRING : database + ".";
+        try (Session s = driver.session(database == null ? SessionConfig.defaultConfig() : SessionConfig.forDatabase(database))) {
+            if (SCHEMA_MANAGEMENT_CREATE.equals(mode)) {
+                boolean created = false;
+                for (Requirement requirement : requirements) {
+                    if (STATE_MISSING.equals(state(s, requirement))) {
+                        log.info("Creating Neo4j schema {}{}", prefix, requirement.name);
+                        s.run(requirement.createStatement).consume();
+                        created = true;
+                    }
+                }
+                if (created) {
+                    long timeout = config.get(CONFIG_KEY_SCHEMA_AWAIT_TIMEOUT, DEFAULT_SCHEMA_AWAIT_TIMEOUT_SECONDS);
+                    s.run(new Query(QUERY_AWAIT_INDEXES, parameters(DB_KEY_TIMEOUT, timeout))).consume();
+                }
+            }
+            List<String> notOnline = new ArrayList<>();
+            for (Requirement requirement : requirements) {
+                String state = state(s, requirement);
+                if (STATE_ONLINE.equals(state)) {
+                    log.info("Neo4j schema {}{} ({} on :{}({})) is {}", prefix, requirement.name, requirement.type, requirement.label, String.join(",", requirement.properties), state);
+                } else {
+                    log.warn("Neo4j schema {}{} ({} on :{}({})) is {}", prefix, requirement.name, requirement.type, requirement.label, String.join(",", requirement.properties), state);
+                    notOnline.add(prefix + requirement.name + "=" + state);
+                }
+            }
+            return notOnline;
+        }
+    }
+
+    // Matched on kind, label and properties rather than name, so equivalent indexes created
+    // by hand are recognised
+    private static String state(Session s, Requirement requirement) {
+        boolean constraint = requirement.type.endsWith("UNIQUENESS");
+        List<Record> rows = s.run(constraint ? QUERY_SHOW_CONSTRAINTS : QUERY_SHOW_INDEXES).list();
+        for (Record row : rows) {
+            String type = row.get("type").asString();
+            boolean typeMatches = constraint ? type.endsWith("UNIQUENESS") : type.equals(requirement.type);
+            if (typeMatches
+                && strings(row, "labelsOrTypes").equals(List.of(requirement.label))
+                && strings(row, "properties").equals(requirement.properties)) {
+                if (!constraint) {
+                    return row.get("state").asString();
+                }
+                // A constraint is usable once its backing index is online
+                String index = row.get("ownedIndex").asString();
+                for (Record indexRow : s.run(QUERY_SHOW_INDEXES).list()) {
+                    if (indexRow.get("name").asString().equals(index)) {
+                        return indexRow.get("state").asString();
+                    }
+                }
+                return STATE_MISSING;
+            }
+        }
+        return STATE_MISSING;
+    }
+
+    // Token lookup indexes have no labels or properties
+    private static List<String> strings(Record row, String key) {
+        return row.get(key).isNull() ? List.of() : row.get(key).asList(v -> v.asString());
+    }
+
+    private static final class Requirement {
+        private final String name;
+        private final String type;
+        private final String label;
+        private final List<String> properties;
+        private final String createStatement;
+
+        private Requirement(String name, String type, String label, List<String> properties, String createStatement) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+            this.properties = properties;
+            this.createStatement = createStatement;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Decides which Neo4j database holds a user. Without sharding that is the configured
+ * database, or the server's default one. With sharding, usernames are placed on a
+ * consistent-hash ring over the shard databases; every shard owns many points of the ring,
+ * so users spread evenly and adding a shard changes the owner of only the users the new
+ * shard takes over. Nothing moves those users: until they are migrated, the migration lookup
+ * setting makes lookups by username that miss on the owning shard ask the other shards and
+ * log the misplaced user. It is off by default, as it multiplies the cost of every unknown
+ * username. Lookups by email, counts and listings ask every shard and merge the answers.
+ */
+class ShardRouter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ShardRouter.class);
+    private static final ComponentRegistry<ShardRouter> ROUTERS = new ComponentRegistry<>("shard router", ShardRouter::new, ShardRouter::configHash);
+    private static final int POINTS_PER_SHARD = 128;
+
+    private final List<String> databases;
+    private final boolean migrationLookup;
+    // Ring points in ascending order and the shard owning each
+    private final long[] points;
+    private final String[] owners;
+
+    private ShardRouter(ComponentModel model) {
+        this.databases = databases(model);
+        this.migrationLookup = model.get(CONFIG_KEY_SHARD_MIGRATION_LOOKUP, false);
+        if (databases.size() < 2) {
+            this.points = new long[0];
+            this.owners = new String[0];
+            return;
+        }
+        long[][] ring = new long[databases.size() * POINTS_PER_SHARD][];
+        int i = 0;
+        for (int shard = 0; shard < databases.size(); shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                ring[i++] = new long[] {StableHash.of(databases.get(shard) + '#' + point), shard};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[ring.length];
+        this.owners = new String[ring.length];
+        for (i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = databases.get((int) ring[i][1]);
+        }
+    }
+
+    static ShardRouter forComponent(ComponentModel model) {
+        return ROUTERS.get(model);
+    }
+
+    static ComponentRegistry<ShardRouter> routers() {
+        return ROUTERS;
+    }
+
+    /**
+     * The databases holding users of a component: the shard databases when sharding is
+     * configured, otherwise the configured database alone. A {@code null} database stands
+     * for the server's default database.
+     */
+    static List<String> databases(ComponentModel model) {
+        String shards = model.get(CONFIG_KEY_SHARD_DATABASES);
+        if (shards != null && !shards.isBlank()) {
+            Set<String> names = new LinkedHashSet<>();
+            for (String name : shards.split(",")) {
+                if (!name.isBlank()) {
+                    names.add(name.trim());
+                }
+            }
+            if (!names.isEmpty()) {
+                return Collections.unmodifiableList(new ArrayList<>(names));
+            }
+        }
+        String database = model.get(CONFIG_KEY_DATABASE);
+        return Collections.singletonList(database == null || database.isBlank() ? null : database.trim());
+    }
+
+    boolean isSharded() {
+        return databases.size() > 1;
+    }
+
+    List<String> databases() {
+        return databases;
+    }
+
+    /**
+     * The database holding the user with this username.
+     */
+    String databaseFor(String userName) {
+        if (!isSharded()) {
+            return databases.get(0);
+        }
+        long hash = StableHash.of(userName);
+        int low = 0;
+        int high = points.length;
+        // First point at or after the hash, wrapping around to the start of the ring
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    /**
+     * Runs a lookup of one user on the shard owning the username and, when it finds
+     * nothing there and the migration lookup is on, on the other shards in turn, so users
+     * placed before the shard list changed are still found. {@code lookup} is given a database and returns {@code null}
+     * when the user is not in it.
+     */
+    static <T> T findUser(ComponentModel model, String userName, Function<String, T> lookup) {
+        ShardRouter router = forComponent(model);
+        String owner = router.databaseFor(userName);
+        T found = lookup.apply(owner);
+        if (found != null || !router.isSharded() || !router.migrationLookup) {
+            return found;
+        }
+        for (String database : router.databases) {
+            if (database.equals(owner)) {
+                continue;
+            }
+            found = lookup.apply(database);
+            if (found != null) {
+                log.warn("User {} of component {} is stored in shard {} but belongs in shard {}; move it there to spare lookups the other shards", userName, model.getId(), database, owner);
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The usernames among {@code userNames} that are already stored on a shard other than
+     * the one owning them, so a write to the owning shard would create them a second time.
+     * Only looked for while the migration lookup is on. {@code lookup} is given a database and the usernames to look for in it, and returns
+     * those it holds.
+     */
+    static Set<String> findMisplaced(ComponentModel model, Collection<String> userNames, BiFunction<String, List<String>, Collection<String>> lookup) {
+        ShardRouter router = forComponent(model);
+        if (!router.isSharded() || !router.migrationLookup || userNames.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> misplaced = new LinkedHashSet<>();
+        for (String database : router.databases) {
+            List<String> foreign = new ArrayList<>();
+            for (String userName : userNames) {
+                if (!database.equals(router.databaseFor(userName)) && !misplaced.contains(userName)) {
+                    foreign.add(userName);
+                }
+            }
+            if (foreign.isEmpty()) {
+                continue;
+            }
+            for (String userName : lookup.apply(database, foreign)) {
+                log.warn("User {} of component {} is stored in shard {} but belongs in shard {}; move it there to spare lookups the other shards", userName, model.getId(), database, router.databaseFor(userName));
+                misplaced.add(userName);
+            }
+        }
+        return misplaced;
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held beyond the ring itself
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hash(model.get(CONFIG_KEY_DATABASE), model.get(CONFIG_KEY_SHARD_DATABASES), model.get(CONFIG_KEY_SHARD_MIGRATION_LOOKUP));
+    }
+}
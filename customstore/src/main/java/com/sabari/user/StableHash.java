@@ -0,0 +1,27 @@
+package com.sabari.user;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 64-bit FNV-1a over UTF-8 bytes, finished with the murmur3 fmix64 avalanche. Unlike
+ * {@code hashCode} it is stable across JVMs and nodes, so shard placement may rely on it.
+ */
+final class StableHash {
+
+    private StableHash() {
+    }
+
+    static long of(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,284 @@
+package com.sabari.user;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.component.ComponentModel;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Bounded, per-component cache of Neo4j user profile data shared by all KeycloakSessions.
+ * Entries are indexed by username and by email, evicted in LRU order and expire after a
+ * configurable TTL. The LRU is split into segments so concurrent logins do not serialize
+ * on one lock. Expired entries stay until they are evicted or replaced, so they can still
+ * be served as a last resort while Neo4j is unavailable. A user's group names are cached
+ * with its profile once they have been read, and expire with it.
+ * <p>
+ * Every invalidation bumps a counter of the user's segment and a cache-wide one. A reader
+ * takes a stamp of the counter before asking Neo4j and hands it back with the result,
+ * which is dropped if the counter moved since: the user it read may already be stale.
+ */
+class UserCache implements AutoCloseable {
+    private static final int SEGMENTS = 16;
+    private static final ComponentRegistry<UserCache> CACHES = new ComponentRegistry<>("user cache", UserCache::new, UserCache::configHash);
+
+    private final boolean enabled;
+    private final long ttlNanos;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ConcurrentMap<String, String> usernameByEmail = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private UserCache(ComponentModel model) {
+        int maxSize = model.get(CONFIG_KEY_USER_CACHE_MAX_SIZE, DEFAULT_USER_CACHE_MAX_SIZE);
+        this.enabled = maxSize > 0;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(model.get(CONFIG_KEY_USER_CACHE_TTL, DEFAULT_USER_CACHE_TTL_SECONDS));
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    static UserCache forComponent(ComponentModel model) {
+        return CACHES.get(model);
+    }
+
+    static ComponentRegistry<UserCache> caches() {
+        return CACHES;
+    }
+
+    UserRecord getByUsername(String username) {
+        if (!enabled || username == null) {
+            return null;
+        }
+        UserRecord user = segmentFor(username).get(username, System.nanoTime(), false);
+        if (user == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return user;
+    }
+
+    UserRecord getByEmail(String email) {
+        if (!enabled || email == null) {
+            return null;
+        }
+        UserRecord user = findByEmail(email, false);
+        if (user == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return user;
+    }
+
+    /**
+     * Returns the last known data of a user even if it has expired; for use only when
+     * Neo4j cannot be asked.
+     */
+    UserRecord getStaleByUsername(String username) {
+        return !enabled || username == null ? null : segmentFor(username).get(username, System.nanoTime(), true);
+    }
+
+    UserRecord getStaleByEmail(String email) {
+        return findByEmail(email, true);
+    }
+
+    private UserRecord findByEmail(String email, boolean allowExpired) {
+        if (!enabled || email == null) {
+            return null;
+        }
+        String username = usernameByEmail.get(email);
+        UserRecord user = username == null ? null : segmentFor(username).get(username, System.nanoTime(), allowExpired);
+        // The email index can outlive a changed email; only trust entries that still match
+        return user == null || !email.equals(user.getEmail()) ? null : user;
+    }
+
+    /**
+     * Stamp to take before reading the user with this username from Neo4j.
+     */
+    long stampForUsername(String username) {
+        return !enabled || username == null ? 0 : segmentFor(username).invalidations();
+    }
+
+    /**
+     * Stamp to take before reading a user by anything other than its username, such as
+     * its email; any invalidation moves it.
+     */
+    long stampForAnyUser() {
+        return invalidations.get();
+    }
+
+    /**
+     * Caches a user read with a {@link #stampForUsername} stamp, unless the user was
+     * invalidated since the stamp was taken.
+     */
+    void put(UserRecord user, long usernameStamp) {
+        put(user, usernameStamp, false);
+    }
+
+    /**
+     * Caches a user read with a {@link #stampForAnyUser} stamp, unless any user was
+     * invalidated since the stamp was taken.
+     */
+    void putFoundByOther(UserRecord user, long anyUserStamp) {
+        put(user, anyUserStamp, true);
+    }
+
+    private void put(UserRecord user, long stamp, boolean anyUser) {
+        if (!enabled || user == null || user.getUserName() == null) {
+            return;
+        }
+        if (segmentFor(user.getUserName()).put(user, System.nanoTime() + ttlNanos, stamp, anyUser) && user.getEmail() != null) {
+            usernameByEmail.put(user.getEmail(), user.getUserName());
+        }
+    }
+
+    /**
+     * Adds the group names of a user that is still cached, keeping its expiry time, unless
+     * the user was invalidated since the {@link #stampForUsername} stamp was taken.
+     */
+    void putGroupNames(String username, List<String> groupNames, long usernameStamp) {
+        if (enabled && username != null) {
+            segmentFor(username).putGroupNames(username, groupNames, usernameStamp);
+        }
+    }
+
+    void invalidate(String username, String email) {
+        if (username != null) {
+            segmentFor(username).remove(username);
+        } else {
+            invalidations.incrementAndGet();
+        }
+        if (email != null) {
+            usernameByEmail.remove(email);
+        }
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        usernameByEmail.clear();
+    }
+
+    private Segment segmentFor(String username) {
+        return segments[(username.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hash(model.get(CONFIG_KEY_USER_CACHE_MAX_SIZE), model.get(CONFIG_KEY_USER_CACHE_TTL));
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<String, Entry> entries;
+        private long invalidations;
+
+        private Segment(int maxSize) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > maxSize) {
+                        dropEmailIndex(eldest.getValue().user);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized UserRecord get(String username, long now, boolean allowExpired) {
+            Entry entry = entries.get(username);
+            if (entry == null || (!allowExpired && entry.expiresAt - now < 0)) {
+                return null;
+            }
+            return entry.user;
+        }
+
+        synchronized long invalidations() {
+            return invalidations;
+        }
+
+        synchronized boolean put(UserRecord user, long expiresAt, long stamp, boolean anyUser) {
+            if (stamp != (anyUser ? UserCache.this.invalidations.get() : invalidations)) {
+                return false;
+            }
+            Entry previous = entries.put(user.getUserName(), new Entry(user, expiresAt));
+            if (previous != null && !Objects.equals(previous.user.getEmail(), user.getEmail())) {
+                dropEmailIndex(previous.user);
+            }
+            return true;
+        }
+
+        synchronized void putGroupNames(String username, List<String> groupNames, long stamp) {
+            if (stamp != invalidations) {
+                return;
+            }
+            Entry entry = entries.get(username);
+            if (entry != null) {
+                entries.put(username, new Entry(entry.user.withGroupNames(groupNames), entry.expiresAt));
+            }
+        }
+
+        synchronized void remove(String username) {
+            // Both counters move under the segment lock, so a put checking either sees it
+            invalidations++;
+            UserCache.this.invalidations.incrementAndGet();
+            Entry removed = entries.remove(username);
+            if (removed != null) {
+                dropEmailIndex(removed.user);
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        private void dropEmailIndex(UserRecord user) {
+            if (user.getEmail() != null) {
+                usernameByEmail.remove(user.getEmail(), user.getUserName());
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final UserRecord user;
+        private final long expiresAt;
+
+        private Entry(UserRecord user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
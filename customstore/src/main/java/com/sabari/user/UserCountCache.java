@@ -0,0 +1,132 @@
+package com.sabari.user;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.keycloak.component.ComponentModel;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Short-lived user counts, so that the admin console's paging does not count again for
+ * every page it renders. The total is kept exact for users created and deleted through
+ * the provider by adjusting it in place; search counts cannot tell whether such a user
+ * matched, so they are dropped instead. The TTL bounds how long changes made directly in
+ * Neo4j go unnoticed. Counting runs outside the lock; every change bumps a version, and a
+ * count is only kept if the version it started under is still current.
+ */
+class UserCountCache implements AutoCloseable {
+    private static final ComponentRegistry<UserCountCache> CACHES = new ComponentRegistry<>("user count cache", UserCountCache::new, UserCountCache::configHash);
+    private static final int MAX_SEARCHES = 1000;
+
+    private final long ttlNanos;
+    private long version;
+    private int total;
+    private long totalExpiresAt;
+    private boolean totalCached;
+    private final LinkedHashMap<String, Count> searches = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Count> eldest) {
+            return size() > MAX_SEARCHES;
+        }
+    };
+
+    private UserCountCache(ComponentModel model) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, model.get(CONFIG_KEY_COUNT_CACHE_TTL, DEFAULT_COUNT_CACHE_TTL_SECONDS)));
+    }
+
+    static UserCountCache forComponent(ComponentModel model) {
+        return CACHES.get(model);
+    }
+
+    static ComponentRegistry<UserCountCache> caches() {
+        return CACHES;
+    }
+
+    /**
+     * Returns the cached total, counting with {@code counter} when it is missing or stale.
+     * The count runs outside the lock, so concurrent misses may each count once; a count
+     * that raced with {@link #adjust} is returned but not kept.
+     */
+    int total(IntSupplier counter) {
+        long started;
+        synchronized (this) {
+            if (totalCached && totalExpiresAt - System.nanoTime() > 0) {
+                return total;
+            }
+            started = version;
+        }
+        int counted = counter.getAsInt();
+        synchronized (this) {
+            if (started == version) {
+                total = counted;
+                totalExpiresAt = System.nanoTime() + ttlNanos;
+                totalCached = ttlNanos > 0;
+            }
+        }
+        return counted;
+    }
+
+    /**
+     * Returns the cached count of a search, counting with {@code counter} when it is
+     * missing or stale.
+     */
+    int search(String key, IntSupplier counter) {
+        long started;
+        synchronized (this) {
+            Count count = searches.get(key);
+            if (count != null && count.expiresAt - System.nanoTime() > 0) {
+                return count.value;
+            }
+            started = version;
+        }
+        int counted = counter.getAsInt();
+        if (ttlNanos > 0) {
+            synchronized (this) {
+                if (started == version) {
+                    searches.put(key, new Count(counted, System.nanoTime() + ttlNanos));
+                }
+            }
+        }
+        return counted;
+    }
+
+    /**
+     * Records users created ({@code delta > 0}) or deleted ({@code delta < 0}) through the
+     * provider.
+     */
+    synchronized void adjust(int delta) {
+        if (delta == 0) {
+            return;
+        }
+        version++;
+        if (totalCached) {
+            total = Math.max(0, total + delta);
+        }
+        searches.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        version++;
+        totalCached = false;
+        searches.clear();
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hashCode(model.get(CONFIG_KEY_COUNT_CACHE_TTL));
+    }
+
+    private static final class Count {
+        private final int value;
+        private final long expiresAt;
+
+        private Count(int value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
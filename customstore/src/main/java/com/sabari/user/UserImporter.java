@@ -0,0 +1,239 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Copies Neo4j users into Keycloak's local user storage, linked back to the component, so
+ * that lookups are served locally and only credentials are checked against Neo4j. Users are
+ * read one keyset page at a time and each page is imported in parallel chunks, every chunk
+ * in its own Keycloak transaction. After every page the last {@code userName} up to which
+ * every chunk has committed is saved as a realm attribute, so an interrupted full sync
+ * resumes where it stopped; a chunk that rolled back holds the checkpoint before it for the
+ * rest of the run, so a resumed run retries it. The attribute is removed when the full sync
+ * finishes and when the component or its realm is removed.
+ */
+final class UserImporter {
+    private static final Logger log = LoggerFactory.getLogger(UserImporter.class);
+    private static final String CHECKPOINT_ATTRIBUTE_PREFIX = "neo4jSyncCheckpoint.";
+    private static final int ADDED = 0;
+    private static final int UPDATED = 1;
+    private static final int FAILED = 2;
+    private static final int SKIPPED = 3;
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final UserStorageProviderModel model;
+    private final int pageSize;
+    private final int chunkSize;
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger updated = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // Owned by Keycloak or another provider; left alone rather than failed
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    UserImporter(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.pageSize = Math.max(1, model.get(CONFIG_KEY_SYNC_PAGE_SIZE, DEFAULT_SYNC_PAGE_SIZE));
+        this.chunkSize = Math.max(1, model.get(CONFIG_KEY_SYNC_CHUNK_SIZE, DEFAULT_SYNC_CHUNK_SIZE));
+    }
+
+    static void removeCheckpoint(RealmModel realm, String componentId) {
+        realm.removeAttribute(CHECKPOINT_ATTRIBUTE_PREFIX + componentId);
+    }
+
+    /**
+     * Imports every user, continuing after the checkpoint of an earlier interrupted run.
+     */
+    SynchronizationResult importAll() {
+        String checkpointAttribute = CHECKPOINT_ATTRIBUTE_PREFIX + model.getId();
+        String checkpoint = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+            session -> session.realms().getRealm(realmId).getAttribute(checkpointAttribute));
+        if (checkpoint != null) {
+            log.info("Resuming neo4j user sync for component {} after {}", model.getName(), checkpoint);
+        }
+        SynchronizationResult result = run(QUERY_GET_USER_STREAM_AFTER_KEY, checkpoint == null ? EMPTY_STRING : checkpoint, Map.of(), checkpointAttribute);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> removeCheckpoint(session.realms().getRealm(realmId), model.getId()));
+        return result;
+    }
+
+    /**
+     * Imports the users whose {@code lastModified} is at or after {@code sinceMillis}, plus
+     * the users without one: only the provider's own writes set it, so a user created or
+     * edited elsewhere may have changed at any time. A changed-since run is short and cheap
+     * to repeat, so it keeps no checkpoint.
+     */
+    SynchronizationResult importChangedSince(long sinceMillis) {
+        return run(QUERY_GET_CHANGED_USER_STREAM_AFTER_KEY, EMPTY_STRING, Map.<String, Object>of(DB_KEY_SINCE, sinceMillis), null);
+    }
+
+    private SynchronizationResult run(String queryText, String after, Map<String, Object> extraParameters, String checkpointAttribute) {
+        int threads = Math.max(1, model.get(CONFIG_KEY_SYNC_THREADS, DEFAULT_SYNC_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "neo4j-user-sync-" + model.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long started = System.nanoTime();
+        int fetched = 0;
+        // Whether every chunk so far has committed; the checkpoint only moves while it holds
+        boolean contiguous = true;
+        try {
+            String lastKey = after;
+            while (true) {
+                List<UserRecord> page = readPage(queryText, lastKey, extraParameters);
+                if (page.isEmpty()) {
+                    break;
+                }
+                List<List<UserRecord>> chunks = new ArrayList<>();
+                List<Future<Boolean>> commits = new ArrayList<>();
+                for (int from = 0; from < page.size(); from += chunkSize) {
+                    List<UserRecord> chunk = page.subList(from, Math.min(page.size(), from + chunkSize));
+                    chunks.add(chunk);
+                    commits.add(executor.submit(() -> importChunk(chunk)));
+                }
+                String checkpoint = null;
+                try {
+                    for (int i = 0; i < chunks.size(); i++) {
+                        contiguous &= commits.get(i).get();
+                        if (contiguous) {
+                            List<UserRecord> chunk = chunks.get(i);
+                            checkpoint = chunk.get(chunk.size() - 1).getUserName();
+                        }
+                    }
+                } finally {
+                    // Also saved when the page is cut short, for the chunks that did commit
+                    if (checkpointAttribute != null && checkpoint != null) {
+                        String committed = checkpoint;
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.realms().getRealm(realmId).setAttribute(checkpointAttribute, committed));
+                    }
+                }
+                fetched += page.size();
+                lastKey = page.get(page.size() - 1).getUserName();
+                double seconds = Math.max(1e-3, (System.nanoTime() - started) / 1e9);
+                log.info("Neo4j user sync for component {}: {} users read ({} added, {} updated, {} failed, {} skipped), {} users/s", model.getName(), fetched, added.get(), updated.get(), failed.get(), skipped.get(), Math.round(fetched / seconds));
+                if (page.size() < pageSize) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Neo4j user sync interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Neo4j user sync failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (skipped.get() > 0) {
+            // SynchronizationResult has no count for users left alone
+            log.info("Neo4j user sync for component {} skipped {} users that exist in the realm without a link to it", model.getName(), skipped.get());
+        }
+        SynchronizationResult result = new SynchronizationResult();
+        result.setAdded(added.get());
+        result.setUpdated(updated.get());
+        result.setFailed(failed.get());
+        return result;
+    }
+
+    private List<UserRecord> readPage(String queryText, String after, Map<String, Object> extraParameters) {
+        Map<String, Object> parameters = new HashMap<>(extraParameters);
+        parameters.put(RECORD_AFTER_KEY, after);
+        parameters.put(RECORD_LIMIT_KEY, pageSize);
+        // Each shard returns its next page; the first pageSize of their union are the next page overall
+        List<UserRecord> page = new ArrayList<>();
+        for (String database : ShardRouter.forComponent(model).databases()) {
+            try (Session s = DbUtil.getShardReadSession(model, database)) {
+                page.addAll(s.executeRead(tx -> tx.run(new Query(queryText, parameters)).list(UserRecord::from)));
+            } catch (Exception ex) {
+                log.warn("Database error: unable to read users to sync; ex={}", ex.getMessage());
+                throw new RuntimeException("Database error: unable to read users to sync", ex);
+            }
+        }
+        if (ShardRouter.forComponent(model).isSharded()) {
+            page.sort(Comparator.comparing(UserRecord::getUserName, Comparator.nullsLast(Comparator.naturalOrder())));
+            if (page.size() > pageSize) {
+                page = new ArrayList<>(page.subList(0, pageSize));
+            }
+        }
+        return page;
+    }
+
+    // Whether the chunk's transaction committed
+    private boolean importChunk(List<UserRecord> chunk) {
+        // Counted only once the chunk's transaction has committed
+        int[] counts = new int[4];
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserProvider local = UserStoragePrivateUtil.userLocalStorage(session);
+                for (UserRecord user : chunk) {
+                    counts[importUser(realm, local, user)]++;
+                }
+            });
+        } catch (RuntimeException ex) {
+            // The whole chunk was rolled back
+            log.warn("Unable to import {} users starting at {}; ex={}", chunk.size(), chunk.get(0).getUserName(), ex.getMessage());
+            failed.addAndGet(chunk.size());
+            return false;
+        }
+        added.addAndGet(counts[ADDED]);
+        updated.addAndGet(counts[UPDATED]);
+        failed.addAndGet(counts[FAILED]);
+        skipped.addAndGet(counts[SKIPPED]);
+        return true;
+    }
+
+    private int importUser(RealmModel realm, UserProvider local, UserRecord user) {
+        if (user.getMalformedReason() != null) {
+            log.warn("Skipping neo4j user {}: {}", user.getUserName(), user.getMalformedReason());
+            return FAILED;
+        }
+        UserModel localUser = local.getUserByUsername(realm, user.getUserName());
+        int outcome;
+        if (localUser == null) {
+            localUser = local.addUser(realm, user.getUserName());
+            localUser.setFederationLink(model.getId());
+            localUser.setEnabled(true);
+            outcome = ADDED;
+        } else if (model.getId().equals(localUser.getFederationLink())) {
+            outcome = UPDATED;
+        } else {
+            // Owned by Keycloak itself or another provider; never take it over
+            log.warn("User {} already exists in realm {} and is not linked to component {}; skipped", user.getUserName(), realm.getName(), model.getName());
+            return SKIPPED;
+        }
+        localUser.setEmail(user.getEmail());
+        localUser.setFirstName(user.getFirstName());
+        localUser.setLastName(user.getLastName());
+        if (user.getBirthDate() != null) {
+            localUser.setSingleAttribute(DB_KEY_USER_BIRTHDATE, user.getBirthDate());
+        }
+        localUser.setSingleAttribute(ATTRIBUTE_USER_SOURCE_KEY, ATTRIBUTE_USER_SOURCE_VALUE);
+        return outcome;
+    }
+}
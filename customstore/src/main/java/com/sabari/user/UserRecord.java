@@ -0,0 +1,118 @@
+package com.sabari.user;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+import org.neo4j.driver.Value;
+import org.neo4j.driver.types.MapAccessor;
+
+/**
+ * Immutable copy of the profile fields of a Neo4j user node, and of its group names once
+ * they have been read. Unlike {@link CustomUser} it is not bound to a KeycloakSession, so
+ * it can be shared across sessions.
+ */
+final class UserRecord {
+    private static final DateTimeFormatter BIRTH_DATE_FORMAT = DateTimeFormatter.ofPattern(CustomUserStorageProviderConstants.DB_KEY_BIRTH_DATE_FORMAT);
+
+    private final String userName;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+    private final String birthDate;
+    // Parsed once here: records are cached and mapped to adapters many times
+    private final LocalDate parsedBirthDate;
+    private final String malformedReason;
+    private final List<String> groupNames;
+
+    UserRecord(String userName, String email, String firstName, String lastName, String birthDate) {
+        this.userName = userName;
+        this.email = email;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.birthDate = birthDate;
+        LocalDate parsed = null;
+        String reason = null;
+        if (userName == null) {
+            reason = "missing userName";
+        } else if (birthDate != null) {
+            try {
+                parsed = LocalDate.parse(birthDate, BIRTH_DATE_FORMAT);
+            } catch (DateTimeParseException ex) {
+                reason = "malformed birthDate";
+            }
+        }
+        this.parsedBirthDate = parsed;
+        this.malformedReason = reason;
+        this.groupNames = null;
+    }
+
+    private UserRecord(UserRecord user, List<String> groupNames) {
+        this.userName = user.userName;
+        this.email = user.email;
+        this.firstName = user.firstName;
+        this.lastName = user.lastName;
+        this.birthDate = user.birthDate;
+        this.parsedBirthDate = user.parsedBirthDate;
+        this.malformedReason = user.malformedReason;
+        this.groupNames = List.copyOf(groupNames);
+    }
+
+    static UserRecord from(MapAccessor rs) {
+        return new UserRecord(
+            string(rs, CustomUserStorageProviderConstants.DB_KEY_USER_NAME),
+            string(rs, CustomUserStorageProviderConstants.DB_KEY_USER_EMAIL),
+            string(rs, CustomUserStorageProviderConstants.DB_KEY_USER_FIRST_NAME),
+            string(rs, CustomUserStorageProviderConstants.DB_KEY_USER_LAST_NAME),
+            string(rs, CustomUserStorageProviderConstants.DB_KEY_USER_BIRTHDATE));
+    }
+
+    // A missing property must stay null; Value.asString() would turn it into "null"
+    private static String string(MapAccessor rs, String key) {
+        Value value = rs.get(key);
+        return value == null || value.isNull() ? null : value.asString();
+    }
+
+    String getUserName() {
+        return userName;
+    }
+
+    String getEmail() {
+        return email;
+    }
+
+    String getFirstName() {
+        return firstName;
+    }
+
+    String getLastName() {
+        return lastName;
+    }
+
+    String getBirthDate() {
+        return birthDate;
+    }
+
+    LocalDate getParsedBirthDate() {
+        return parsedBirthDate;
+    }
+
+    /**
+     * Why this record cannot be mapped to a user, or {@code null} when it can.
+     */
+    String getMalformedReason() {
+        return malformedReason;
+    }
+
+    /**
+     * The Neo4j names of the user's groups, or {@code null} when they have not been read.
+     */
+    List<String> getGroupNames() {
+        return groupNames;
+    }
+
+    UserRecord withGroupNames(List<String> groupNames) {
+        return new UserRecord(this, groupNames);
+    }
+}
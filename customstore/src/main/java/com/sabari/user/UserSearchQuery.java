@@ -0,0 +1,280 @@
+package com.sabari.user;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.keycloak.models.UserModel;
+import org.neo4j.driver.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Translates Keycloak's user search parameters into a parameterized Cypher query. Values
+ * are always passed as parameters and the Cypher text depends only on which filters are
+ * present, so Neo4j reuses one cached plan per filter combination. Exact filters compare
+ * with {@code =} and use the range indexes; the others use {@code CONTAINS}, which only a
+ * text index can serve. In full-text mode the free-text search instead queries the Lucene
+ * index over the four searchable properties with prefix and fuzzy terms, ranked by score,
+ * so its cost follows the number of hits rather than the number of users.
+ */
+final class UserSearchQuery {
+    private static final Logger log = LoggerFactory.getLogger(UserSearchQuery.class);
+    private static final Pattern PROPERTY_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final String SESSION_PARAMETER_PREFIX = "keycloak.session.";
+    private static final String RETURN_USER = " RETURN u.userName as userName,u.firstName as firstName, u.lastName as lastName, u.email as email, u.birthDate as birthDate";
+    private static final String RETURN_COUNT = " RETURN COUNT(u) as count";
+    private static final Pattern LUCENE_SPECIAL = Pattern.compile("[+\\-&|!(){}\\[\\]^\"~*?:\\\\/]");
+    // Shorter terms match too much with an edit distance of one
+    private static final int MIN_FUZZY_TERM_LENGTH = 4;
+    private static final int MAX_CACHED_QUERIES = 256;
+    private static final ConcurrentMap<String, String> CYPHER = new ConcurrentHashMap<>();
+
+    // Keycloak attribute names whose node property is named differently
+    private static final Map<String, String> PROPERTIES = Map.of(
+        UserModel.USERNAME, DB_KEY_USER_NAME,
+        UserModel.EMAIL, DB_KEY_USER_EMAIL,
+        UserModel.FIRST_NAME, DB_KEY_USER_FIRST_NAME,
+        UserModel.LAST_NAME, DB_KEY_USER_LAST_NAME);
+    private static final List<String> SEARCH_PROPERTIES = List.of(DB_KEY_USER_NAME, DB_KEY_USER_EMAIL, DB_KEY_USER_FIRST_NAME, DB_KEY_USER_LAST_NAME);
+
+    private final String search;
+    private final boolean exactSearch;
+    private final boolean fullText;
+    // Sorted so the same filters always produce the same Cypher text
+    private final TreeMap<String, String> equalTo = new TreeMap<>();
+    private final TreeMap<String, String> containing = new TreeMap<>();
+
+    private UserSearchQuery(String search, boolean exactSearch, boolean fullText) {
+        this.fullText = fullText && search != null && !exactSearch;
+        this.search = this.fullText ? lucene(search) : search;
+        this.exactSearch = exactSearch;
+    }
+
+    /**
+     * Builds the full-text query of the single-string search; a wildcard lists every user.
+     */
+    static UserSearchQuery fullText(String search) {
+        String terms = search == null ? EMPTY_STRING : search.replace(WILDCARD, EMPTY_STRING).trim();
+        return new UserSearchQuery(terms.isEmpty() ? null : terms, false, true);
+    }
+
+    /**
+     * Builds the query for {@code searchForUserStream(realm, params, ...)}, or returns
+     * {@code null} when no Neo4j user can match, e.g. a filter on disabled users.
+     */
+    static UserSearchQuery from(Map<String, String> params, boolean fullText) {
+        boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+        String search = params.get(UserModel.SEARCH);
+        boolean exactSearch = false;
+        if (search != null) {
+            search = search.trim();
+            if (search.length() > 1 && search.startsWith("\"") && search.endsWith("\"")) {
+                search = search.substring(1, search.length() - 1);
+                exactSearch = true;
+            } else {
+                search = search.replace(WILDCARD, EMPTY_STRING);
+            }
+            if (search.isEmpty()) {
+                search = null;
+            }
+        }
+        UserSearchQuery query = new UserSearchQuery(search, exactSearch, fullText);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String name = param.getKey();
+            String value = param.getValue();
+            if (name.startsWith(SESSION_PARAMETER_PREFIX) || value == null) {
+                continue;
+            }
+            switch (name) {
+                case UserModel.ENABLED:
+                    // Neo4j users are always enabled
+                    if (!Boolean.parseBoolean(value)) {
+                        return null;
+                    }
+                    continue;
+                case UserModel.EMAIL_VERIFIED:
+                    if (Boolean.parseBoolean(value)) {
+                        return null;
+                    }
+                    continue;
+                case UserModel.USERNAME:
+                case UserModel.EMAIL:
+                case UserModel.FIRST_NAME:
+                case UserModel.LAST_NAME:
+                    if (!query.filter(PROPERTIES.get(name), value, exact)) {
+                        return null;
+                    }
+                    continue;
+                default:
+                    // Any other key is an attribute filter (the console's "key:value" search)
+                    if (!query.filter(name, value, true)) {
+                        return null;
+                    }
+            }
+        }
+        if (params.containsKey(UserModel.IDP_ALIAS) || params.containsKey(UserModel.IDP_USER_ID)) {
+            // Neo4j users have no identity provider links
+            return null;
+        }
+        return query;
+    }
+
+    /**
+     * Builds the exact-match query of {@code searchForUserByUserAttributeStream}, or
+     * returns {@code null} when the attribute cannot be a node property.
+     */
+    static UserSearchQuery byAttribute(String name, String value) {
+        UserSearchQuery query = new UserSearchQuery(null, false, false);
+        return query.filter(PROPERTIES.getOrDefault(name, name), value, true) ? query : null;
+    }
+
+    private boolean filter(String property, String value, boolean exact) {
+        if (!PROPERTY_NAME.matcher(property).matches()) {
+            log.warn("Ignoring search on attribute {}: not a valid neo4j property name", property);
+            return false;
+        }
+        (exact ? equalTo : containing).put(property, value);
+        return true;
+    }
+
+    /**
+     * Whether pages can continue after the last userName; full-text hits are ranked by score.
+     */
+    boolean isKeysetPageable() {
+        return !fullText;
+    }
+
+    /**
+     * Identifies this search, values included, for the keyset cursor cache.
+     */
+    String cursorKey() {
+        return shape() + '\u0000' + search + '\u0000' + equalTo.values() + '\u0000' + containing.values();
+    }
+
+    Query toQuery(Integer firstResult, Integer maxResults, String afterKey) {
+        boolean limited = maxResults != null && maxResults >= 0;
+        int skip = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        // Without further filters Lucene only has to collect the top hits of the page
+        boolean topHits = fullText && limited && equalTo.isEmpty() && containing.isEmpty();
+        String shape = shape() + (afterKey != null ? "|after" : "|skip") + (limited ? "|limit" : EMPTY_STRING);
+        // The score lets results of several shards be merged in rank order
+        String cypher = cypher(shape, () -> select(topHits, afterKey != null) + RETURN_USER
+            + (fullText ? ", score as " + DB_KEY_SCORE + " ORDER BY score DESC, u.userName" : " ORDER BY u.userName")
+            + (afterKey == null ? " SKIP $" + RECORD_SKIP_KEY : EMPTY_STRING)
+            + (limited ? " LIMIT $" + RECORD_LIMIT_KEY : EMPTY_STRING));
+        Map<String, Object> parameters = filterParameters();
+        if (afterKey != null) {
+            parameters.put(RECORD_AFTER_KEY, afterKey);
+        } else {
+            parameters.put(RECORD_SKIP_KEY, skip);
+        }
+        if (limited) {
+            parameters.put(RECORD_LIMIT_KEY, maxResults);
+        }
+        if (topHits) {
+            parameters.put(DB_KEY_HITS, skip + maxResults);
+        }
+        return new Query(cypher, parameters);
+    }
+
+    /**
+     * Counts the users this search matches. In full-text mode this is the total number of
+     * index hits, which Lucene computes without loading the users.
+     */
+    Query toCountQuery() {
+        return new Query(cypher(shape() + "|count", () -> select(false, false) + RETURN_COUNT), filterParameters());
+    }
+
+    private static String cypher(String shape, Supplier<String> build) {
+        String cypher = CYPHER.get(shape);
+        if (cypher == null) {
+            cypher = build.get();
+            // Attribute names are user supplied; stop caching rather than grow without bound
+            if (CYPHER.size() < MAX_CACHED_QUERIES) {
+                CYPHER.putIfAbsent(shape, cypher);
+            }
+        }
+        return cypher;
+    }
+
+    private Map<String, Object> filterParameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        if (search != null) {
+            parameters.put("search", search);
+        }
+        int i = 0;
+        for (String value : equalTo.values()) {
+            parameters.put("eq" + i++, value);
+        }
+        i = 0;
+        for (String value : containing.values()) {
+            parameters.put("like" + i++, value);
+        }
+        return parameters;
+    }
+
+    private String shape() {
+        return (search == null ? EMPTY_STRING : fullText ? "fulltext" : exactSearch ? "search=" : "search~") + '|' + equalTo.keySet() + '|' + containing.keySet();
+    }
+
+    private String select(boolean topHits, boolean afterKey) {
+        List<String> conditions = new ArrayList<>();
+        StringBuilder cypher = new StringBuilder();
+        if (fullText) {
+            cypher.append("CALL db.index.fulltext.queryNodes('").append(FULLTEXT_INDEX_NAME).append("', $search")
+                .append(topHits ? ", {limit: $" + DB_KEY_HITS + "}" : EMPTY_STRING)
+                .append(") YIELD node AS u, score");
+        } else {
+            cypher.append("MATCH (u:User)");
+        }
+        if (search != null && !fullText) {
+            List<String> alternatives = new ArrayList<>(SEARCH_PROPERTIES.size());
+            for (String property : SEARCH_PROPERTIES) {
+                alternatives.add("u.`" + property + "`" + (exactSearch ? " = $search" : " CONTAINS $search"));
+            }
+            conditions.add("(" + String.join(" OR ", alternatives) + ")");
+        }
+        int i = 0;
+        for (String property : equalTo.keySet()) {
+            conditions.add("u.`" + property + "` = $eq" + i++);
+        }
+        i = 0;
+        for (String property : containing.keySet()) {
+            conditions.add("u.`" + property + "` CONTAINS $like" + i++);
+        }
+        if (afterKey) {
+            conditions.add("u.userName > $" + RECORD_AFTER_KEY);
+        }
+        if (!conditions.isEmpty()) {
+            cypher.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        return cypher.toString();
+    }
+
+    /**
+     * Turns free text into a Lucene query in which every word must match, either as a
+     * prefix or, for longer words, within one edit. Wildcard queries are not analyzed, so
+     * the words are lower-cased here the way the standard analyzer indexes them.
+     */
+    private static String lucene(String search) {
+        List<String> clauses = new ArrayList<>();
+        for (String word : search.toLowerCase(Locale.ROOT).split("\\s+")) {
+            String term = LUCENE_SPECIAL.matcher(word).replaceAll("\\\\$0");
+            if (term.isEmpty()) {
+                continue;
+            }
+            clauses.add(word.length() >= MIN_FUZZY_TERM_LENGTH ? "(" + term + "* OR " + term + "~1)" : term + "*");
+        }
+        return String.join(" AND ", clauses);
+    }
+}
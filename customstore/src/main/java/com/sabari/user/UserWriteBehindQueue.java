@@ -0,0 +1,379 @@
+package com.sabari.user;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.util.JsonSerialization;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+import static org.neo4j.driver.Values.parameters;
+
+/**
+ * Registers users created through the admin API in Neo4j off the request thread. Pending
+ * users are coalesced by username and written with one {@code UNWIND ... MERGE}
+ * transaction per batch, flushed when the batch is full or the flush interval has passed.
+ * Failed batches are retried with exponential backoff; batches that still fail, and users
+ * that do not fit in the bounded queue, are appended to a spill file that is replayed once
+ * Neo4j accepts writes again. A replay works on a {@code .replaying} copy of the spill
+ * file that is deleted only once it has been written or spilled again, so users are
+ * registered at least once; the {@code MERGE} makes repeats harmless. The replay reads the
+ * file one batch at a time. Nodes may share the spill directory: a lock file next to the
+ * spill file keeps them from appending while another moves it, and lets only one of them
+ * replay it. While the shard migration
+ * lookup is on, users already stored on a shard other than their owning one are left out
+ * of the batch, as the {@code MERGE} cannot see them.
+ */
+class UserWriteBehindQueue implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UserWriteBehindQueue.class);
+    private static final ComponentRegistry<UserWriteBehindQueue> QUEUES = new ComponentRegistry<>("user write-behind queue", UserWriteBehindQueue::new, UserWriteBehindQueue::configHash);
+    private static final long INITIAL_BACKOFF_MS = 200L;
+    private static final long MAX_BACKOFF_MS = 10000L;
+    // Wakes a writer waiting for users when the queue is closed
+    private static final UserRecord SHUTDOWN = new UserRecord(null, null, null, null, null);
+    // A replaced queue may still be spilling while its successor replays the same file;
+    // the lock file only guards against other nodes, as its locks are held per JVM
+    private static final ConcurrentMap<Path, SpillLock> SPILL_LOCKS = new ConcurrentHashMap<>();
+    // Byte regions of the lock file: one held to append or move, one for a whole replay
+    private static final long APPEND_REGION = 0L;
+    private static final long REPLAY_REGION = 1L;
+
+    private final ComponentModel model;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int maxRetries;
+    private final Path spillFile;
+    private final Path replayFile;
+    private final Path lockFile;
+    private final SpillLock spillLock;
+    private final BlockingQueue<UserRecord> pending;
+    private final Thread writer;
+    private final CountDownLatch stopping = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    private UserWriteBehindQueue(ComponentModel model) {
+        this.model = model;
+        this.batchSize = Math.max(1, model.get(CONFIG_KEY_WRITE_BEHIND_BATCH_SIZE, DEFAULT_WRITE_BEHIND_BATCH_SIZE));
+        this.flushIntervalMs = model.get(CONFIG_KEY_WRITE_BEHIND_FLUSH_INTERVAL, DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MS);
+        this.maxRetries = model.get(CONFIG_KEY_WRITE_BEHIND_MAX_RETRIES, DEFAULT_WRITE_BEHIND_MAX_RETRIES);
+        String spillDirectory = model.get(CONFIG_KEY_WRITE_BEHIND_SPILL_DIRECTORY);
+        if (spillDirectory == null || spillDirectory.isBlank()) {
+            // validateConfiguration requires the directory; only older configurations get here
+            spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_WRITE_BEHIND_SPILL_DIRECTORY).toString();
+            log.error("No write-behind spill directory is configured for component {}; spilling to {}, which may not survive a restart. "
+                + "Set {} to a directory on durable storage", model.getId(), spillDirectory, CONFIG_KEY_WRITE_BEHIND_SPILL_DIRECTORY);
+        }
+        this.spillFile = Paths.get(spillDirectory, model.getId() + ".jsonl").toAbsolutePath();
+        this.replayFile = spillFile.resolveSibling(spillFile.getFileName() + ".replaying");
+        this.lockFile = spillFile.resolveSibling(spillFile.getFileName() + ".lock");
+        this.spillLock = SPILL_LOCKS.computeIfAbsent(spillFile, file -> new SpillLock());
+        this.pending = new LinkedBlockingQueue<>(Math.max(1, model.get(CONFIG_KEY_WRITE_BEHIND_CAPACITY, DEFAULT_WRITE_BEHIND_CAPACITY)));
+        this.writer = new Thread(this::run, "neo4j-write-behind-" + model.getId());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static UserWriteBehindQueue forComponent(ComponentModel model) {
+        return QUEUES.get(model);
+    }
+
+    static ComponentRegistry<UserWriteBehindQueue> queues() {
+        return QUEUES;
+    }
+
+    static boolean isEnabled(ComponentModel model) {
+        return model.get(CONFIG_KEY_WRITE_BEHIND_ENABLED, false);
+    }
+
+    void enqueue(UserRecord user) {
+        if (!pending.offer(user)) {
+            log.warn("Write-behind queue full; spilling user {} for component {}", user.getUserName(), model.getId());
+            spill(List.of(user));
+        } else if (!running && pending.remove(user)) {
+            // Queued after close() drained the queue; nothing would write it
+            spill(List.of(user));
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        stopping.countDown();
+        // A full queue wakes the writer by itself
+        pending.offer(SHUTDOWN);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // Whatever the writer did not get to is kept on disk for the next queue; the batch
+        // it holds is spilled by the writer itself
+        List<UserRecord> remaining = new ArrayList<>();
+        pending.drainTo(remaining);
+        remaining.remove(SHUTDOWN);
+        if (!remaining.isEmpty()) {
+            spill(remaining);
+        }
+    }
+
+    private void run() {
+        List<UserRecord> batch = new ArrayList<>(batchSize);
+        try {
+            // Users spilled by an earlier queue, or left by a replay that did not finish, go first
+            boolean replayed = false;
+            while (running) {
+                try {
+                    if (!replayed) {
+                        replayed = true;
+                        replaySpill();
+                    }
+                    UserRecord first = pending.poll(1, TimeUnit.SECONDS);
+                    if (first == SHUTDOWN) {
+                        break;
+                    }
+                    if (first == null) {
+                        replaySpill();
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                    while (batch.size() < batchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        UserRecord next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                        if (next == null || next == SHUTDOWN) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    boolean flushed = flushWithRetry(batch);
+                    if (!flushed) {
+                        spill(batch);
+                    }
+                    batch.clear();
+                    if (flushed) {
+                        replaySpill();
+                    }
+                } catch (RuntimeException ex) {
+                    log.warn("Write-behind writer error for component {}; ex={}", model.getId(), ex.getMessage());
+                    if (!batch.isEmpty()) {
+                        spill(batch);
+                        batch.clear();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!batch.isEmpty()) {
+                spill(batch);
+            }
+        }
+    }
+
+    private boolean flushWithRetry(List<UserRecord> batch) throws InterruptedException {
+        long backoff = INITIAL_BACKOFF_MS;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                flush(batch);
+                return true;
+            } catch (RuntimeException ex) {
+                // A closing queue spills instead of waiting out the backoff
+                if (attempt >= maxRetries || stopping.await(backoff, TimeUnit.MILLISECONDS)) {
+                    log.warn("Database error: unable to register {} users in neo4j after {} attempts; ex={}", batch.size(), attempt + 1, ex.getMessage());
+                    return false;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private void flush(List<UserRecord> batch) {
+        // Later events for the same username win
+        Map<String, UserRecord> coalesced = new LinkedHashMap<>();
+        for (UserRecord user : batch) {
+            coalesced.put(user.getUserName(), user);
+        }
+        // The MERGE only sees the owning shard; users left on another shard already exist
+        Set<String> misplaced = ShardRouter.findMisplaced(model, coalesced.keySet(), (database, userNames) -> {
+            try (Session s = DbUtil.getShardReadSession(model, database)) {
+                return s.executeRead(tx -> tx.run(new Query(QUERY_GET_EXISTING_USER_NAMES, parameters(DB_KEY_USER_NAMES, userNames)))
+                    .list(record -> record.get(DB_KEY_USER_NAME).asString()));
+            }
+        });
+        List<Map<String, Object>> rows = new ArrayList<>(coalesced.size());
+        for (UserRecord user : coalesced.values()) {
+            if (!misplaced.contains(user.getUserName())) {
+                rows.add(toRow(user));
+            }
+        }
+        // One transaction per shard; with a single database that is the whole batch
+        ShardRouter router = ShardRouter.forComponent(model);
+        Map<String, List<Map<String, Object>>> rowsByShard = new HashMap<>();
+        for (Map<String, Object> row : rows) {
+            rowsByShard.computeIfAbsent(router.databaseFor((String) row.get(DB_KEY_USER_NAME)), database -> new ArrayList<>()).add(row);
+        }
+        int created = 0;
+        for (Map.Entry<String, List<Map<String, Object>>> shard : rowsByShard.entrySet()) {
+            try (Session s = DbUtil.getShardSession(model, shard.getKey())) {
+                created += s.executeWrite(tx -> tx.run(new Query(QUERY_MERGE_USERS, parameters(DB_KEY_ROWS, shard.getValue()))).consume().counters().nodesCreated());
+            }
+        }
+        log.info("Registered {} users with neo4j", rows.size());
+        ClusterInvalidation.usersChanged(null, model, coalesced.values(), created);
+    }
+
+    private void spill(List<UserRecord> users) {
+        spill(users, null);
+    }
+
+    /**
+     * Appends users to the spill file, followed by the unread lines of {@code rest}, if
+     * given, such as what a failed replay did not get to.
+     */
+    private void spill(List<UserRecord> users, BufferedReader rest) {
+        synchronized (spillLock) {
+            try {
+                Files.createDirectories(spillFile.getParent());
+                try (FileChannel lock = openLockFile();
+                     FileLock appending = lock.lock(APPEND_REGION, 1, false);
+                     BufferedWriter out = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (UserRecord user : users) {
+                        out.write(JsonSerialization.writeValueAsString(toRow(user)));
+                        out.newLine();
+                    }
+                    String line;
+                    while (rest != null && (line = rest.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            out.write(line);
+                            out.newLine();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                log.error("Unable to spill {} users for component {} to {}; they will not be registered with neo4j; ex={}", users.size(), model.getId(), spillFile, ex.getMessage());
+            }
+        }
+    }
+
+    private void replaySpill() throws InterruptedException {
+        // A replay still running in a replaced queue finishes the file on its own
+        // Called whenever the writer is idle; most of the time there is nothing to replay
+        if ((!Files.exists(spillFile) && !Files.exists(replayFile)) || !spillLock.replaying.tryLock()) {
+            return;
+        }
+        try (FileChannel lock = openLockFile(); FileLock replaying = lock.tryLock(REPLAY_REGION, 1, false)) {
+            if (replaying == null) {
+                // Another node sharing the directory is replaying
+                return;
+            }
+            synchronized (spillLock) {
+                try (FileLock appending = lock.lock(APPEND_REGION, 1, false)) {
+                    if (Files.exists(replayFile)) {
+                        // Left by a replay that did not finish; newer spills are added after it
+                        if (Files.exists(spillFile)) {
+                            try (OutputStream out = Files.newOutputStream(replayFile, StandardOpenOption.APPEND)) {
+                                Files.copy(spillFile, out);
+                            }
+                            Files.delete(spillFile);
+                        }
+                    } else if (Files.exists(spillFile)) {
+                        Files.move(spillFile, replayFile);
+                    } else {
+                        return;
+                    }
+                }
+            }
+            int replayed = 0;
+            try (BufferedReader in = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+                List<UserRecord> batch = new ArrayList<>(batchSize);
+                while (true) {
+                    batch.clear();
+                    String line;
+                    while (batch.size() < batchSize && (line = in.readLine()) != null) {
+                        if (!line.isBlank()) {
+                            batch.add(fromRow(JsonSerialization.readValue(line, Map.class)));
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    if (!running || !flushWithRetry(batch)) {
+                        spill(batch, in);
+                        break;
+                    }
+                    replayed += batch.size();
+                }
+            }
+            Files.delete(replayFile);
+            log.info("Replayed {} spilled users for component {}", replayed, model.getId());
+        } catch (IOException ex) {
+            // The replay file is kept and picked up again by the next replay
+            log.warn("Unable to replay spilled users from {}; ex={}", replayFile, ex.getMessage());
+        } finally {
+            spillLock.replaying.unlock();
+        }
+    }
+
+    private FileChannel openLockFile() throws IOException {
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private static Map<String, Object> toRow(UserRecord user) {
+        Map<String, Object> row = new HashMap<>();
+        row.put(DB_KEY_USER_NAME, user.getUserName());
+        row.put(DB_KEY_USER_EMAIL, user.getEmail());
+        row.put(DB_KEY_USER_FIRST_NAME, user.getFirstName());
+        row.put(DB_KEY_USER_LAST_NAME, user.getLastName());
+        return row;
+    }
+
+    private static UserRecord fromRow(Map<?, ?> row) {
+        return new UserRecord(
+            (String) row.get(DB_KEY_USER_NAME),
+            (String) row.get(DB_KEY_USER_EMAIL),
+            (String) row.get(DB_KEY_USER_FIRST_NAME),
+            (String) row.get(DB_KEY_USER_LAST_NAME),
+            null);
+    }
+
+    private static int configHash(ComponentModel model) {
+        return Objects.hash(
+            model.get(CONFIG_KEY_WRITE_BEHIND_BATCH_SIZE),
+            model.get(CONFIG_KEY_WRITE_BEHIND_FLUSH_INTERVAL),
+            model.get(CONFIG_KEY_WRITE_BEHIND_CAPACITY),
+            model.get(CONFIG_KEY_WRITE_BEHIND_MAX_RETRIES),
+            model.get(CONFIG_KEY_WRITE_BEHIND_SPILL_DIRECTORY));
+    }
+
+    private static final class SpillLock {
+        // Held for a whole replay; appends and moves synchronize on the SpillLock itself
+        private final ReentrantLock replaying = new ReentrantLock();
+    }
+}
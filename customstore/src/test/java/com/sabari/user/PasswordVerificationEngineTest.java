@@ -0,0 +1,104 @@
+package com.sabari.user;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+
+import static com.sabari.user.CustomUserStorageProviderConstants.*;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks every {@code {id}} hash format against published test vectors, so a verifier
+ * that only agrees with its own {@code encode} cannot pass.
+ */
+class PasswordVerificationEngineTest {
+    private ComponentModel model;
+    private PasswordVerificationEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        model = new ComponentModel();
+        model.setId("password-verification-test");
+        engine = PasswordVerificationEngine.forComponent(model);
+    }
+
+    @AfterEach
+    void tearDown() {
+        PasswordVerificationEngine.engines().remove(model.getId());
+    }
+
+    // RFC 7914, section 11
+    @Test
+    void pbkdf2Sha256() {
+        String stored = pbkdf2(PASSWORD_HASH_PBKDF2_SHA256, 1, "salt",
+            "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+            + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+        assertTrue(engine.verify("user", "passwd", stored));
+        assertFalse(engine.verify("user", "Passwd", stored));
+
+        stored = pbkdf2(PASSWORD_HASH_PBKDF2_SHA256, 80000, "NaCl",
+            "4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56"
+            + "a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d");
+        assertTrue(engine.verify("user", "Password", stored));
+        assertFalse(engine.verify("user", "password", stored));
+    }
+
+    // PBKDF2-HMAC-SHA512 vectors in the style of RFC 6070
+    @Test
+    void pbkdf2Sha512() {
+        String stored = pbkdf2(PASSWORD_HASH_PBKDF2_SHA512, 1, "salt",
+            "867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252"
+            + "c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce");
+        assertTrue(engine.verify("user", "password", stored));
+        assertFalse(engine.verify("user", "passwore", stored));
+
+        stored = pbkdf2(PASSWORD_HASH_PBKDF2_SHA512, 2, "salt",
+            "e1d9c16aa681708a45f5c7c4e215ceb66e011a2e9f0040713f18aefdb866d53c"
+            + "f76cab2868a39b9f7840edce4fef5a82be67335c77a6068e04112754f27ccf4e");
+        assertTrue(engine.verify("user", "password", stored));
+        assertFalse(engine.verify("user", "password ", stored));
+    }
+
+    // OpenBSD bcrypt regression vectors
+    @Test
+    void bcrypt() {
+        String stored = "{" + BCryptPasswordVerifier.ID + "}$2a$06$If6bvum7DFjUnE9p2uDeDu0YHzrHM6tf.iqN8.yx.jNN1ILEf7h0i";
+        assertTrue(engine.verify("user", "abc", stored));
+        assertFalse(engine.verify("user", "abd", stored));
+
+        stored = "{" + BCryptPasswordVerifier.ID + "}$2a$06$.rCVZVOThsIa97pEDOxvGuRRgzG64bvtJ0938xuqzv18d3ZpQhstC";
+        assertTrue(engine.verify("user", "abcdefghijklmnopqrstuvwxyz", stored));
+        assertFalse(engine.verify("user", "abcdefghijklmnopqrstuvwxy", stored));
+    }
+
+    // Reference implementation (phc-winner-argon2) test vectors
+    @Test
+    void argon2() {
+        String stored = "{" + Argon2PasswordVerifier.ID + "}$argon2i$v=19$m=256,t=2,p=1$c29tZXNhbHQ$iekCn0Y3spW+sCcFanM2xBT63UP2sghkUoHLIUpWRS8";
+        assertTrue(engine.verify("user", "password", stored));
+        assertFalse(engine.verify("user", "differentpassword", stored));
+
+        stored = "{" + Argon2PasswordVerifier.ID + "}$argon2id$v=19$m=256,t=2,p=1$c29tZXNhbHQ$nf65EOgLrQMR/uIPnA4rEsF5h7TKyQwu9U1bMCHGi/4";
+        assertTrue(engine.verify("user", "password", stored));
+        assertFalse(engine.verify("user", "differentpassword", stored));
+    }
+
+    @Test
+    void unprefixedHashIsPlainText() {
+        assertTrue(engine.verify("user", "secret", "secret"));
+        assertFalse(engine.verify("user", "Secret", "secret"));
+    }
+
+    private static String pbkdf2(String id, int iterations, String salt, String hexKey) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return "{" + id + "}" + iterations
+            + "$" + encoder.encodeToString(salt.getBytes(StandardCharsets.UTF_8))
+            + "$" + encoder.encodeToString(HexFormat.of().parseHex(hexKey));
+    }
+}